@@ -2,7 +2,12 @@ package tdl.anonymize;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
 import lombok.extern.slf4j.Slf4j;
+import tdl.anonymize.image.ImageMasker;
+import tdl.anonymize.image.TemplateBundle;
+import tdl.anonymize.video.MaskTimeline;
+import tdl.anonymize.video.MaskTimelineFile;
 import tdl.anonymize.video.VideoMasker;
 
 import java.nio.file.DirectoryStream;
@@ -19,23 +24,107 @@ import java.util.List;
 @SuppressWarnings("FieldCanBeLocal")
 @Slf4j
 public class AnonymizeApp {
+    private static final String MODE_MASK = "mask";
+    private static final String MODE_DETECT = "detect";
+    private static final String MODE_APPLY = "apply";
+    private static final String MODE_COMPILE_TEMPLATES = "compile-templates";
+    private static final String EXACT_MATCH_OFF = "off";
+    private static final String EXACT_MATCH_AUTO = "auto";
+    private static final String EXACT_MATCH_ALL = "all";
 
-    @Parameter(names = {"-i", "--input"}, description = "The path to the input recording file", required = true)
+    @Parameter(names = {"-i", "--input"}, description = "The path to the input recording file, not needed to compile the templates")
     private String inputVideoPath;
 
-    @Parameter(names = {"-o", "--output"}, description = "The path to the output recording file", required = true)
+    @Parameter(names = {"-o", "--output"}, description = "The path to the output recording file, not needed to detect")
     private String outputVideoPath;
 
-    @Parameter(names = {"-sd", "--subimages-dir"}, description = "Folder containing the subimages to match", required = true)
+    @Parameter(names = {"-m", "--mode"}, description = "mask to detect and mask in one go, detect to only write the timeline, apply to mask from the timeline, compile-templates to write the template bundle")
+    private String mode = MODE_MASK;
+
+    @Parameter(names = {"-tl", "--timeline"}, description = "The timeline of the masks written by detect and read by apply")
+    private String timelinePath;
+
+    @Parameter(names = {"-sd", "--subimages-dir"}, description = "Folder containing the subimages to match")
     private String subimagesDirPath;
 
+    @Parameter(names = {"-tb", "--template-bundle"}, description = "The subimages compiled by compile-templates, used instead of the subimages folder")
+    private String templateBundlePath;
+
     @Parameter(names = {"-th", "--matching-threshold"}, description = "The threshold used when matching subimages")
     private Double matchingThreshold = 0.96;
 
 
+    @Parameter(names = {"-em", "--exact-match"}, description = "off to match by correlation, auto to also accept the exact matches whatever their correlation, all to only match exactly")
+    private String exactMatch = EXACT_MATCH_OFF;
+
     @Parameter(names = {"-cbs", "--continuous-block-size"}, description = "Assume that the subimages will match in blocks")
     private Integer continuousBlockSize = 3;
 
+    @Parameter(names = {"-asmin", "--adaptive-step-min"}, description = "Smallest block size when the block size adapts to how often the matches change")
+    private Integer minAdaptiveStep = 1;
+
+    @Parameter(names = {"-asmax", "--adaptive-step-max"}, description = "Largest block size when the block size adapts to how often the matches change, 0 to keep it fixed")
+    private Integer maxAdaptiveStep = 0;
+
+    @Parameter(names = {"-pd", "--pipeline-depth"}, description = "Blocks in flight between decoding and encoding, 0 to process sequentially")
+    private Integer pipelineDepth = 0;
+
+    @Parameter(names = {"-wt", "--worker-threads"}, description = "Threads used to match the subimages when pipelining")
+    private Integer workerThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"-pl", "--pyramid-levels"}, description = "Levels of the coarse to fine search, 0 to disable, -1 to pick from the subimage size. Above 2 levels small subimages may be missed")
+    private Integer pyramidLevels = 0;
+
+    @Parameter(names = {"-pf", "--prefilter"}, description = "Skip the flat areas of the frames, where no subimage can match, before matching")
+    private boolean prefilter = false;
+
+    @Parameter(names = {"-spm", "--spectrum-matching"}, description = "Match the subimages of at least 64x64 pixels in the frequency domain, instead of the band threads and the pre-filter")
+    private boolean spectrumMatching = false;
+
+    @Parameter(names = {"-ti", "--template-index"}, description = "Look up where the subimages may be in an index of their patches, for many subimages")
+    private boolean templateIndex = false;
+
+    @Parameter(names = {"-msl", "--masker-schedule-latency"}, description = "Search the subimages not found recently in one read ahead frame out of this many, 0 to search all of them in every read ahead frame")
+    private Integer maskerScheduleLatency = 0;
+
+    @Parameter(names = {"-tr", "--tracking-radius"}, description = "Search first this many pixels around the previous matches, 0 to disable")
+    private Integer trackingRadius = 0;
+
+    @Parameter(names = {"-tri", "--tracking-refresh-interval"}, description = "Frames between two full searches when tracking, 0 to only refresh on read ahead frames")
+    private Integer trackingRefreshInterval = 0;
+
+    @Parameter(names = {"-dts", "--dirty-tile-size"}, description = "Only search the tiles of this size that changed since the previous frame, 0 to disable")
+    private Integer dirtyTileSize = 0;
+
+    @Parameter(names = {"-sc", "--scroll-detection"}, description = "Move the previous matches when the frame scrolled instead of searching the whole frame again")
+    private boolean scrollDetection = false;
+
+    @Parameter(names = {"-mv", "--motion-vectors"}, description = "Compare the frames by macroblock, the ones the encoder coded as moved or intra are searched without comparing them")
+    private boolean motionVectors = false;
+
+    @Parameter(names = {"-bt", "--band-threads"}, description = "Threads matching horizontal bands of high resolution frames, 0 to disable")
+    private Integer bandThreads = 0;
+
+    @Parameter(names = {"-mt", "--masker-threads"}, description = "Threads matching the subimages of a frame concurrently, 0 to disable")
+    private Integer maskerThreads = 0;
+
+    @Parameter(names = {"-yuv", "--yuv-native"}, description = "Match and mask the decoded YUV420P planes directly, skipping the conversion to BGR")
+    private boolean yuvNative = false;
+
+    @Parameter(names = {"-sr", "--smart-reencode"}, description = "Copy the GOPs without any match and only re-encode the GOPs that need masking")
+    private boolean smartReencode = false;
+
+    @Parameter(names = {"-ss", "--sparse-stride"}, description = "Only decode the intervals where a subimage appears, found from keyframes at least this many frames apart, 0 to disable")
+    private Integer sparseStride = 0;
+
+    @Parameter(names = {"-st", "--segment-threads"}, description = "Split the video at keyframes and mask this many segments in parallel, 0 to disable")
+    private Integer segmentThreads = 0;
+
+    @Parameter(names = {"-dc", "--detection-cache"}, description = "Directory caching the matches of each subimage between runs")
+    private String detectionCachePath;
+
+    @Parameter(names = {"-dcs", "--detection-cache-size"}, description = "Size of the detection cache in MB, the least recently used entries are deleted above it")
+    private Long detectionCacheSizeMb = 1024L;
 
     public static void main(String[] args) throws Exception {
         AnonymizeApp main = new AnonymizeApp();
@@ -47,10 +136,107 @@ public class AnonymizeApp {
     }
 
     private void run() throws Exception {
+        if (!mode.equals(MODE_MASK) && !mode.equals(MODE_DETECT) && !mode.equals(MODE_APPLY) &&
+                !mode.equals(MODE_COMPILE_TEMPLATES)) {
+            throw new ParameterException("Unknown mode " + mode + ", expected mask, detect, apply or compile-templates");
+        }
+        if (mode.equals(MODE_COMPILE_TEMPLATES)) {
+            if (subimagesDirPath == null || templateBundlePath == null) {
+                throw new ParameterException("The subimages folder and the template bundle are required to " + mode);
+            }
+            compileTemplates();
+            return;
+        }
+        if (inputVideoPath == null) {
+            throw new ParameterException("The input is required to " + mode);
+        }
+        if (subimagesDirPath == null && templateBundlePath == null) {
+            throw new ParameterException("The subimages folder or the template bundle is required to " + mode);
+        }
+        ImageMasker.MatchMode matchMode;
+        if (exactMatch.equals(EXACT_MATCH_OFF)) {
+            matchMode = ImageMasker.MatchMode.CORRELATION;
+        } else if (exactMatch.equals(EXACT_MATCH_AUTO)) {
+            matchMode = ImageMasker.MatchMode.AUTO;
+        } else if (exactMatch.equals(EXACT_MATCH_ALL)) {
+            matchMode = ImageMasker.MatchMode.EXACT;
+        } else {
+            throw new ParameterException("Unknown exact match " + exactMatch + ", expected off, auto or all");
+        }
+        if (yuvNative && matchMode != ImageMasker.MatchMode.CORRELATION) {
+            throw new ParameterException("The exact match cannot be used with the YUV native mode");
+        }
+        if (!mode.equals(MODE_DETECT) && outputVideoPath == null) {
+            throw new ParameterException("The output is required to " + mode);
+        }
+        if (!mode.equals(MODE_MASK) && timelinePath == null) {
+            throw new ParameterException("The timeline is required to " + mode);
+        }
+
         Path inputVideo = Paths.get(inputVideoPath);
-        Path outputVideo = Paths.get(outputVideoPath);
-        List<Path> subImages = new ArrayList<>();
+        Path outputVideo = outputVideoPath != null ? Paths.get(outputVideoPath) : null;
+        VideoMasker masker;
+        if (templateBundlePath != null) {
+            List<ImageMasker> subImageMaskers = TemplateBundle.read(Paths.get(templateBundlePath), matchingThreshold);
+            System.out.println("List of subimages:");
+            subImageMaskers.forEach(subImageMasker -> System.out.println(subImageMasker.getName()));
+            masker = new VideoMasker(inputVideo, outputVideo, subImageMaskers);
+        } else {
+            List<Path> subImages = listSubImages();
+            System.out.println("List of subimages:");
+            subImages.forEach(System.out::println);
+            masker = new VideoMasker(inputVideo, outputVideo, subImages, matchingThreshold);
+        }
+        masker.setPipelineDepth(pipelineDepth);
+        masker.setAdaptiveStep(minAdaptiveStep, maxAdaptiveStep);
+        masker.setWorkerThreads(workerThreads);
+        masker.setPyramidLevels(pyramidLevels);
+        masker.setMatchMode(matchMode);
+        masker.setPrefilter(prefilter);
+        masker.setSpectrumMatching(spectrumMatching);
+        masker.setTemplateIndex(templateIndex);
+        masker.setMaskerSchedule(maskerScheduleLatency);
+        masker.setTracking(trackingRadius, trackingRefreshInterval);
+        masker.setDirtyTileSize(dirtyTileSize);
+        masker.setMotionVectors(motionVectors);
+        masker.setScrollDetection(scrollDetection);
+        masker.setBandThreads(bandThreads);
+        masker.setMaskerThreads(maskerThreads);
+        masker.setYuvNative(yuvNative);
+        masker.setSmartReencode(smartReencode);
+        masker.setSegmentThreads(segmentThreads);
+        masker.setSparseStride(sparseStride);
+        if (detectionCachePath != null) {
+            masker.setDetectionCache(Paths.get(detectionCachePath), detectionCacheSizeMb * 1024 * 1024);
+        }
+        if (mode.equals(MODE_DETECT)) {
+            MaskTimeline timeline = masker.detect(continuousBlockSize);
+            MaskTimelineFile.write(timeline, Paths.get(timelinePath));
+            log.info("{} masked frames written to {}", timeline.getMaskedFrameCount(), timelinePath);
+        } else if (mode.equals(MODE_APPLY)) {
+            masker.apply(MaskTimelineFile.read(Paths.get(timelinePath)));
+        } else {
+            masker.run(continuousBlockSize);
+        }
+    }
+
+    private void compileTemplates() throws Exception {
+        List<ImageMasker> subImageMaskers = new ArrayList<>();
+        try {
+            for (Path subImage : listSubImages()) {
+                subImageMaskers.add(new ImageMasker(subImage, matchingThreshold));
+            }
+            TemplateBundle.write(subImageMaskers, Paths.get(templateBundlePath));
+            log.info("{} subimages compiled to {}", subImageMaskers.size(), templateBundlePath);
+        } finally {
+            for (ImageMasker subImageMasker : subImageMaskers) {
+                subImageMasker.close();
+            }
+        }
+    }
 
+    private List<Path> listSubImages() throws Exception {
+        List<Path> subImages = new ArrayList<>();
         Path subimagesDir = Paths.get(subimagesDirPath);
         try (DirectoryStream<Path> stream =
                      Files.newDirectoryStream(subimagesDir, "*.{png,jpg}")) {
@@ -58,11 +244,6 @@ public class AnonymizeApp {
                 subImages.add(entry);
             }
         }
-
-        System.out.println("List of subimages:");
-        subImages.forEach(System.out::println);
-
-        VideoMasker masker = new VideoMasker(inputVideo, outputVideo, subImages, matchingThreshold);
-        masker.run(continuousBlockSize);
+        return subImages;
     }
 }
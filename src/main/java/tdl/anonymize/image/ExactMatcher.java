@@ -0,0 +1,193 @@
+package tdl.anonymize.image;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Point;
+import org.bytedeco.javacpp.opencv_core.Rect;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the positions where the grey frame holds exactly the pixels of the grey subimage, for lossless sources
+ * where the subimage is drawn pixel for pixel.
+ *
+ * A 2D Rabin-Karp hash of every window of the size of the subimage is rolled first along the rows, then down the
+ * columns, so the cost grows with the size of the searched area and not with the size of the subimage.
+ * The hashes are computed modulo 2^64, a window with the hash of the subimage is confirmed by comparing its pixels.
+ */
+class ExactMatcher {
+    private static final long ROW_BASE = 0x100000001B3L;
+    private static final long COLUMN_BASE = 0x9E3779B97F4A7C15L;
+    /**
+     * Shared by all the subimages, a thread hashes one frame at a time
+     */
+    private static final ThreadLocal<HashBuffers> HASH_BUFFERS = ThreadLocal.withInitial(HashBuffers::new);
+
+    private final byte[] subImagePixels;
+    private final int width;
+    private final int height;
+    private final long rowPower;
+    private final long columnPower;
+    private final long subImageHash;
+
+    /**
+     * @param subImageGrey the single channel subimage
+     */
+    ExactMatcher(Mat subImageGrey) {
+        this.width = subImageGrey.cols();
+        this.height = subImageGrey.rows();
+        this.subImagePixels = new byte[width * height];
+        BytePointer data = subImageGrey.data();
+        long step = subImageGrey.step();
+        for (int y = 0; y < height; y++) {
+            data.position(y * step).get(subImagePixels, y * width, width);
+        }
+
+        this.rowPower = power(ROW_BASE, width);
+        this.columnPower = power(COLUMN_BASE, height);
+        long hash = 0;
+        for (int y = 0; y < height; y++) {
+            long rowHash = 0;
+            for (int x = 0; x < width; x++) {
+                rowHash = rowHash * ROW_BASE + (subImagePixels[y * width + x] & 0xFF);
+            }
+            hash = hash * COLUMN_BASE + rowHash;
+        }
+        this.subImageHash = hash;
+    }
+
+    /**
+     * The matches are not suppressed, the caller keeps one per occurrence like it does for the correlation hits
+     *
+     * @param frameGrey the single channel frame
+     * @param searchAreas the positions to search, as areas of the result, null to search the whole frame
+     * @return the top left corners of every match, in raster order, each one once even where the areas overlap
+     */
+    List<Point> find(Mat frameGrey, List<Rect> searchAreas) {
+        int resultCols = frameGrey.cols() - width + 1;
+        int resultRows = frameGrey.rows() - height + 1;
+        List<Point> matches = new ArrayList<>();
+        if (resultCols <= 0 || resultRows <= 0) {
+            return matches;
+        }
+
+        ByteBuffer pixels = frameGrey.createBuffer();
+        int stride = (int) frameGrey.step();
+        if (searchAreas == null) {
+            findInArea(pixels, stride, 0, 0, resultCols, resultRows, matches);
+        } else {
+            for (Rect area : searchAreas) {
+                int left = Math.max(0, area.x());
+                int top = Math.max(0, area.y());
+                int right = Math.min(resultCols, area.x() + area.width());
+                int bottom = Math.min(resultRows, area.y() + area.height());
+                if (left < right && top < bottom) {
+                    findInArea(pixels, stride, left, top, right - left, bottom - top, matches);
+                }
+            }
+        }
+        if (matches.size() < 2) {
+            return matches;
+        }
+
+        // The areas may overlap, the same position can be found twice
+        matches.sort(Comparator.comparingInt(Point::y).thenComparingInt(Point::x));
+        List<Point> distinct = new ArrayList<>(matches.size());
+        for (Point match : matches) {
+            Point last = distinct.isEmpty() ? null : distinct.get(distinct.size() - 1);
+            if (last != null && last.x() == match.x() && last.y() == match.y()) {
+                match.close();
+            } else {
+                distinct.add(match);
+            }
+        }
+        return distinct;
+    }
+
+    private void findInArea(ByteBuffer pixels, int stride, int left, int top, int cols, int rows,
+                            List<Point> matches) {
+        HashBuffers buffers = HASH_BUFFERS.get();
+        long[] rowHashes = buffers.rowHashes(cols * height);
+        long[] columnHashes = buffers.columnHashes(cols);
+        for (int x = 0; x < cols; x++) {
+            columnHashes[x] = 0;
+        }
+
+        int lastRow = top + rows + height - 1;
+        for (int y = top; y < lastRow; y++) {
+            // The hashes of the row leaving the windows are overwritten by the row entering them
+            int slot = ((y - top) % height) * cols;
+            boolean full = y - top >= height;
+            int rowStart = y * stride + left;
+            long rowHash = 0;
+            for (int k = 0; k < width; k++) {
+                rowHash = rowHash * ROW_BASE + (pixels.get(rowStart + k) & 0xFF);
+            }
+            for (int x = 0; x < cols; x++) {
+                if (x > 0) {
+                    rowHash = rowHash * ROW_BASE - (pixels.get(rowStart + x - 1) & 0xFF) * rowPower +
+                            (pixels.get(rowStart + x + width - 1) & 0xFF);
+                }
+                long leavingHash = full ? rowHashes[slot + x] : 0;
+                columnHashes[x] = columnHashes[x] * COLUMN_BASE - leavingHash * columnPower + rowHash;
+                rowHashes[slot + x] = rowHash;
+            }
+
+            int matchY = y - height + 1;
+            if (matchY < top) {
+                continue;
+            }
+            for (int x = 0; x < cols; x++) {
+                if (columnHashes[x] == subImageHash && equalsAt(pixels, stride, left + x, matchY)) {
+                    matches.add(new Point(left + x, matchY));
+                }
+            }
+        }
+    }
+
+    private boolean equalsAt(ByteBuffer pixels, int stride, int x, int y) {
+        for (int row = 0; row < height; row++) {
+            int frameStart = (y + row) * stride + x;
+            int subImageStart = row * width;
+            for (int col = 0; col < width; col++) {
+                if (pixels.get(frameStart + col) != subImagePixels[subImageStart + col]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static long power(long base, int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+
+    /**
+     * The hashes of a search, reused across frames by the thread that owns them
+     */
+    private static class HashBuffers {
+        private long[] rowHashes = new long[0];
+        private long[] columnHashes = new long[0];
+
+        long[] rowHashes(int size) {
+            if (rowHashes.length < size) {
+                rowHashes = new long[size];
+            }
+            return rowHashes;
+        }
+
+        long[] columnHashes(int size) {
+            if (columnHashes.length < size) {
+                columnHashes = new long[size];
+            }
+            return columnHashes;
+        }
+    }
+}
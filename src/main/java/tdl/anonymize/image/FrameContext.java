@@ -0,0 +1,223 @@
+package tdl.anonymize.image;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+import org.bytedeco.javacpp.opencv_core.Size;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32F;
+import static org.bytedeco.javacpp.opencv_core.CV_64F;
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+import static org.bytedeco.javacpp.opencv_core.dft;
+import static org.bytedeco.javacpp.opencv_core.getOptimalDFTSize;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * The per frame data shared by all the ImageMaskers.
+ *
+ * The grey frame, the downscaled levels, the spectrum and the integral images are computed on first use and at
+ * most once per frame, whatever the number of maskers. The context must be used before the frame is masked.
+ */
+public class FrameContext implements AutoCloseable {
+
+    private final Mat frame;
+    private final int width;
+    private final int height;
+    private final List<Mat> levels;
+    private TileHashes tileHashes;
+    private TileHashes previousTileHashes;
+    private TileHashes.Changes changedTiles;
+    private Mat spectrum;
+    private Mat integral;
+    private Mat squaredIntegral;
+    private Mat blockMeans;
+
+    /**
+     * @param frame a BGR frame
+     */
+    public FrameContext(Mat frame) {
+        this.frame = frame;
+        this.width = frame.cols();
+        this.height = frame.rows();
+        this.levels = new ArrayList<>();
+    }
+
+    private FrameContext(Mat frame, int width, int height, Mat luma) {
+        this.frame = frame;
+        this.width = width;
+        this.height = height;
+        this.levels = new ArrayList<>();
+        this.levels.add(luma);
+    }
+
+    /**
+     * The Y plane of an I420 frame is used as the grey frame, no colour conversion is needed.
+     *
+     * @param yuvFrame a YUV420P frame laid out as a single channel Mat of height * 3 / 2 rows
+     */
+    public static FrameContext ofI420(Mat yuvFrame) {
+        int height = yuvFrame.rows() * 2 / 3;
+        return new FrameContext(yuvFrame, yuvFrame.cols(), height, yuvFrame.rowRange(0, height));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the full resolution grey frame
+     */
+    public Mat getGrey() {
+        return getLevel(0);
+    }
+
+    /**
+     * @param level the pyramid level, each level halves the size of the previous one
+     * @return the grey frame downscaled by 2^level
+     */
+    public synchronized Mat getLevel(int level) {
+        if (levels.isEmpty()) {
+            Mat grey = new Mat(frame.size(), CV_8UC1);
+            cvtColor(frame, grey, COLOR_BGR2GRAY);
+            levels.add(grey);
+        }
+        while (levels.size() <= level) {
+            Mat downscaled = new Mat();
+            pyrDown(levels.get(levels.size() - 1), downscaled);
+            levels.add(downscaled);
+        }
+        return levels.get(level);
+    }
+
+    /**
+     * @return the spectrum of the grey frame, as computed by dft, zero padded to a size at least as large as the
+     * frame that only depends on the size of the frame
+     */
+    public synchronized Mat getSpectrum() {
+        if (spectrum == null) {
+            Mat grey = getGrey();
+            int cols = getOptimalDFTSize(grey.cols());
+            int rows = getOptimalDFTSize(grey.rows());
+            spectrum = new Mat();
+            try (Scalar zero = Scalar.all(0);
+                 Mat padded = new Mat(rows, cols, CV_32F, zero);
+                 Rect frameArea = new Rect(0, 0, grey.cols(), grey.rows());
+                 Mat paddedFrame = new Mat(padded, frameArea)) {
+                grey.convertTo(paddedFrame, CV_32F);
+                dft(padded, spectrum, 0, grey.rows());
+            }
+        }
+        return spectrum;
+    }
+
+    /**
+     * @return the integral of the grey frame, CV_64F, one row and one column larger than the frame
+     */
+    public synchronized Mat getIntegral() {
+        computeIntegrals();
+        return integral;
+    }
+
+    /**
+     * @return the integral of the squared grey frame, CV_64F, one row and one column larger than the frame
+     */
+    public synchronized Mat getSquaredIntegral() {
+        computeIntegrals();
+        return squaredIntegral;
+    }
+
+    private void computeIntegrals() {
+        if (integral == null) {
+            integral = new Mat();
+            squaredIntegral = new Mat();
+            integral2(getGrey(), integral, squaredIntegral, CV_64F, CV_64F);
+        }
+    }
+
+    /**
+     * @param blockSize the side of the square blocks, in pixels
+     * @return the mean of every whole block of the grey frame, CV_8UC1, one pixel per block
+     */
+    public synchronized Mat getBlockMeans(int blockSize) {
+        Mat grey = getGrey();
+        int cols = grey.cols() / blockSize;
+        int rows = grey.rows() / blockSize;
+        if (blockMeans == null || blockMeans.cols() != cols || blockMeans.rows() != rows) {
+            if (blockMeans != null) {
+                blockMeans.release();
+            }
+            blockMeans = new Mat();
+            // Cropped to whole blocks so that the area interpolation averages exactly one block per pixel
+            try (Rect blocksArea = new Rect(0, 0, cols * blockSize, rows * blockSize);
+                 Mat blocks = new Mat(grey, blocksArea);
+                 Size size = new Size(cols, rows)) {
+                resize(blocks, blockMeans, size, 0, 0, INTER_AREA);
+            }
+        }
+        return blockMeans;
+    }
+
+    /**
+     * @param tileSize the side of the square tiles, in pixels
+     * @return the hashes of the tiles of the grey frame
+     */
+    public synchronized TileHashes getTileHashes(int tileSize) {
+        if (tileHashes == null || tileHashes.getTileSize() != tileSize) {
+            tileHashes = TileHashes.of(getGrey(), tileSize);
+        }
+        return tileHashes;
+    }
+
+    /**
+     * @param previousTileHashes the tile hashes of the frame just before this one
+     */
+    public synchronized void setPreviousTileHashes(TileHashes previousTileHashes) {
+        this.previousTileHashes = previousTileHashes;
+        this.changedTiles = null;
+    }
+
+    /**
+     * @param changedTiles the tiles changed since the previous frame, computed without comparing the tiles
+     */
+    public synchronized void setChangedTiles(TileHashes.Changes changedTiles) {
+        this.previousTileHashes = null;
+        this.changedTiles = changedTiles;
+    }
+
+    /**
+     * @return the tiles changed since the previous frame, or null if the previous frame is not known
+     */
+    public synchronized TileHashes.Changes getChangedTiles() {
+        if (changedTiles == null && previousTileHashes != null) {
+            changedTiles = getTileHashes(previousTileHashes.getTileSize()).changedSince(previousTileHashes);
+        }
+        return changedTiles;
+    }
+
+    @Override
+    public synchronized void close() {
+        levels.forEach(Mat::release);
+        levels.clear();
+        if (spectrum != null) {
+            spectrum.release();
+            spectrum = null;
+        }
+        if (integral != null) {
+            integral.release();
+            squaredIntegral.release();
+            integral = null;
+            squaredIntegral = null;
+        }
+        if (blockMeans != null) {
+            blockMeans.release();
+            blockMeans = null;
+        }
+    }
+}
@@ -1,12 +1,28 @@
 package tdl.anonymize.image;
 
-import org.bytedeco.javacpp.indexer.IntRawIndexer;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.indexer.UByteIndexer;
 import org.bytedeco.javacpp.opencv_core.*;
 import org.bytedeco.javacpp.opencv_imgproc;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
@@ -14,126 +30,1222 @@ import static org.bytedeco.javacpp.opencv_imgproc.*;
 
 public class ImageMasker implements AutoCloseable {
 
+    /**
+     * Pick the number of pyramid levels from the size of the subimage
+     */
+    public static final int AUTO_PYRAMID_LEVELS = -1;
+    /**
+     * The subimages with this in their file name are always matched exactly, e.g. token.exact.png
+     */
+    public static final String EXACT_NAME_MARKER = ".exact.";
+    static final int MAX_PYRAMID_LEVELS = 4;
+    /**
+     * The levels checked against the full resolution search on the fixtures, the automatic choice stays below
+     */
+    private static final int MAX_AUTO_PYRAMID_LEVELS = 2;
+    private static final int MIN_PYRAMID_SUBIMAGE_SIZE = 12;
+    /**
+     * The score of an exact match, above any correlation score even one rounded above 1
+     */
+    private static final float EXACT_HIT_SCORE = Float.MAX_VALUE;
+    private static final double PYRAMID_THRESHOLD_MARGIN_PER_LEVEL = 0.15;
+    private static final int MIN_BAND_ROWS = 64;
+    /**
+     * The buffers of each thread, shared by all the maskers as a thread matches one subimage at a time
+     */
+    private static final ThreadLocal<MatchBuffers> MATCH_BUFFERS =
+            ThreadLocal.withInitial(ImageMasker::createMatchBuffers);
+    private static final Map<Thread, MatchBuffers> ALL_MATCH_BUFFERS = new HashMap<>();
+
     private final String name;
     private final Mat subImage;
 
     private final Mat blurredSubImage;
     private final Mat subImageGrey;
+    private final List<Mat> subImageGreyLevels;
     private final double threshold;
+    private int pyramidLevels;
+    private ForkJoinPool bandPool;
+    private final Mat[] blurredSubImageI420 = new Mat[4];
+    private final YuvPlanes[] blurredSubImagePlanes = new YuvPlanes[4];
+    private String fingerprint;
+    private final ExactMatcher exactMatcher;
+    private final SpectrumMatcher spectrumMatcher;
+    private final boolean prefilterSuitable;
+    private MatchMode matchMode;
+    private ByteBuffer mappedPixels;
+    private boolean prefilter;
+    private boolean spectrumMatching;
+    private final AtomicLong prefilteredPositions = new AtomicLong();
+    private final AtomicLong rejectedPositions = new AtomicLong();
+    private final AtomicLong prefilterNanos = new AtomicLong();
 
     public ImageMasker(Path subImagePath, double matchingThreshold) throws ImageMaskerException {
+        this(subImagePath.getFileName().toString(), readSubImage(subImagePath), null, null, null,
+                matchingThreshold);
+    }
+
+    /**
+     * @param subImageGreyLevels the grey subimage followed by its downscaled levels, null to compute them
+     * @param blurredSubImage the replacement of the subimage, null to blur it
+     * @param fingerprint see getFingerprint, null to compute it when needed
+     */
+    ImageMasker(String name, Mat subImage, List<Mat> subImageGreyLevels, Mat blurredSubImage, String fingerprint,
+                double matchingThreshold) {
         threshold = matchingThreshold;
-        this.name = subImagePath.getFileName().toString();
-        this.subImage = imread(subImagePath.toString());
-        if (subImage.empty()) {
-            throw new ImageMaskerException("Cannot open image");
-        }
+        this.name = name;
+        this.subImage = subImage;
+        this.fingerprint = fingerprint;
 
         // Create the grey image used for matching
-        Mat grey = new Mat(subImage.size(), CV_8UC1);
-        cvtColor(subImage, grey, COLOR_BGR2GRAY);
+        this.subImageGreyLevels = new ArrayList<>();
+        if (subImageGreyLevels != null) {
+            this.subImageGreyLevels.addAll(subImageGreyLevels);
+        } else {
+            Mat grey = new Mat(subImage.size(), CV_8UC1);
+            cvtColor(subImage, grey, COLOR_BGR2GRAY);
+            this.subImageGreyLevels.add(grey);
+        }
+        Mat grey = this.subImageGreyLevels.get(0);
         this.subImageGrey = grey;
+        this.pyramidLevels = 0;
+        this.bandPool = null;
+        this.exactMatcher = new ExactMatcher(grey);
+        this.spectrumMatcher = SpectrumMatcher.isSuitable(grey) ? new SpectrumMatcher(grey) : null;
+        this.prefilterSuitable = WindowStatistics.isSuitable(grey);
+        setMatchMode(name.contains(EXACT_NAME_MARKER) ? MatchMode.EXACT : MatchMode.CORRELATION);
 
         // Create the blurred image used for replacing
-        this.blurredSubImage = imread(subImagePath.toString());
-        int kernelWidth = Math.round(blurredSubImage.size().width() / 2);
-        int kernelHeight = Math.round(blurredSubImage.size().height() / 2);
-        Size kernelSize = new Size(kernelWidth, kernelHeight);
-        opencv_imgproc.blur(blurredSubImage, blurredSubImage, kernelSize);
+        if (blurredSubImage != null) {
+            this.blurredSubImage = blurredSubImage;
+        } else {
+            this.blurredSubImage = subImage.clone();
+            int kernelWidth = Math.round(this.blurredSubImage.size().width() / 2);
+            int kernelHeight = Math.round(this.blurredSubImage.size().height() / 2);
+            Size kernelSize = new Size(kernelWidth, kernelHeight);
+            opencv_imgproc.blur(this.blurredSubImage, this.blurredSubImage, kernelSize);
+        }
+    }
+
+    private static MatchBuffers createMatchBuffers() {
+        MatchBuffers buffers = new MatchBuffers();
+        synchronized (ALL_MATCH_BUFFERS) {
+            releaseIdleMatchBuffers();
+            ALL_MATCH_BUFFERS.put(Thread.currentThread(), buffers);
+        }
+        return buffers;
+    }
+
+    /**
+     * Releases the frame sized buffers of the threads that ended, e.g. the workers of a pool that was shut down.
+     * They are also released when a new thread starts matching.
+     */
+    public static void releaseIdleMatchBuffers() {
+        synchronized (ALL_MATCH_BUFFERS) {
+            Iterator<Map.Entry<Thread, MatchBuffers>> entries = ALL_MATCH_BUFFERS.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Thread, MatchBuffers> entry = entries.next();
+                if (!entry.getKey().isAlive()) {
+                    entry.getValue().release();
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    private static Mat readSubImage(Path subImagePath) throws ImageMaskerException {
+        Mat subImage = imread(subImagePath.toString());
+        if (subImage.empty()) {
+            throw new ImageMaskerException("Cannot open image");
+        }
+        return subImage;
     }
 
     public String getName() {
         return name;
     }
 
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return a hash of the size and the pixels of the subimage, it does not depend on the name of the file
+     */
+    public synchronized String getFingerprint() {
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+        digest.update(ByteBuffer.allocate(12).putInt(subImage.cols()).putInt(subImage.rows())
+                .putInt(subImage.type()).array());
+        byte[] row = new byte[(int) (subImage.cols() * subImage.elemSize())];
+        long step = subImage.step1() * subImage.elemSize1();
+        BytePointer data = subImage.data();
+        for (int y = 0; y < subImage.rows(); y++) {
+            data.position(y * step).get(row, 0, row.length);
+            digest.update(row);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte value : digest.digest()) {
+            hex.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+        }
+        fingerprint = hex.toString();
+        return fingerprint;
+    }
+
+    public int getSubImageWidth() {
+        return subImage.cols();
+    }
+
+    public int getSubImageHeight() {
+        return subImage.rows();
+    }
+
+    /**
+     * When greater than zero the frame is first searched at a lower resolution and the candidates are
+     * confirmed with a full resolution match in a small window around them.
+     *
+     * The coarse threshold is relaxed by PYRAMID_THRESHOLD_MARGIN_PER_LEVEL per level. This is a heuristic, not a
+     * bound: a match whose downscaled score drops by more than the margin is missed. Up to MAX_AUTO_PYRAMID_LEVELS
+     * the matches are the same as the full resolution search on the test recordings, which is as far as
+     * AUTO_PYRAMID_LEVELS goes. More levels are faster but may miss small or thin subimages.
+     *
+     * @param pyramidLevels the number of times the frame is halved for the coarse search,
+     *                      0 to disable, AUTO_PYRAMID_LEVELS to derive it from the size of the subimage
+     */
+    public void setPyramidLevels(int pyramidLevels) {
+        this.pyramidLevels = pyramidLevels;
+    }
+
+    public int getPyramidLevels() {
+        if (pyramidLevels != AUTO_PYRAMID_LEVELS) {
+            return Math.min(Math.max(0, pyramidLevels), MAX_PYRAMID_LEVELS);
+        }
+
+        // Stop halving before the subimage loses its features
+        int levels = 0;
+        int smallestSide = Math.min(subImageGrey.cols(), subImageGrey.rows());
+        while (levels < MAX_AUTO_PYRAMID_LEVELS && (smallestSide / 2) >= MIN_PYRAMID_SUBIMAGE_SIZE) {
+            smallestSide /= 2;
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * @param matchMode how the subimage is found in the frames, see MatchMode
+     */
+    public void setMatchMode(MatchMode matchMode) {
+        this.matchMode = matchMode;
+    }
+
+    public MatchMode getMatchMode() {
+        return matchMode;
+    }
+
+    /**
+     * When enabled, the full frame searches without a pyramid first reject the tiles of positions where every
+     * window is flat, see WindowStatistics, and only match the other tiles. The subimages of little contrast are
+     * never filtered.
+     *
+     * @param prefilter true to reject the flat areas before matching
+     */
+    public void setPrefilter(boolean prefilter) {
+        this.prefilter = prefilter;
+    }
+
+    public boolean isPrefilter() {
+        return prefilter;
+    }
+
+    /**
+     * When enabled, the full frame searches without a pyramid of the large subimages are made in the frequency
+     * domain, see SpectrumMatcher. The scores are the same as matchTemplate up to the rounding of the transforms,
+     * a score right at the threshold may fall on the other side. The whole frame is transformed at once, the band
+     * pool and the pre-filter are not used for these subimages.
+     *
+     * @param spectrumMatching true to match the large subimages in the frequency domain
+     */
+    public void setSpectrumMatching(boolean spectrumMatching) {
+        this.spectrumMatching = spectrumMatching;
+    }
+
+    public boolean isSpectrumMatching() {
+        return spectrumMatching && spectrumMatcher != null;
+    }
+
+    /**
+     * @return the number of positions seen by the pre-filter since the masker was created
+     */
+    public long getPrefilteredPositions() {
+        return prefilteredPositions.get();
+    }
+
+    /**
+     * @return the number of positions rejected by the pre-filter, they were not matched
+     */
+    public long getRejectedPositions() {
+        return rejectedPositions.get();
+    }
+
+    public long getPrefilterNanos() {
+        return prefilterNanos.get();
+    }
+
+    /**
+     * When set, a full frame search is split into horizontal bands matched in parallel on the pool.
+     * The bands of the frame overlap by the height of the subimage so each position is matched
+     * in exactly one band against the same pixels as a single match over the whole frame.
+     *
+     * @param bandPool the pool running the bands, null to match the frame in a single call
+     */
+    public void setBandPool(ForkJoinPool bandPool) {
+        this.bandPool = bandPool;
+    }
+
     public List<Point> findMatchingPoints(Mat mainImage) {
-        List<Point> matchedPoints = new ArrayList<>();
-        Mat grey = new Mat(mainImage.size(), CV_8UC1);
-        cvtColor(mainImage, grey, COLOR_BGR2GRAY);
-        try (Mat mainImageGrey = grey) {
+        try (FrameContext frameContext = new FrameContext(mainImage)) {
+            return findMatchingPoints(frameContext);
+        }
+    }
+
+    public List<Point> findMatchingPoints(FrameContext frameContext) {
+        return findMatchingPoints(frameContext, (List<Rect>) null);
+    }
 
-            Size size = new Size(
-                    mainImageGrey.cols() - subImageGrey.cols() + 1,
-                    mainImageGrey.rows() - subImageGrey.rows() + 1
-            );
+    /**
+     * Same as findMatchingPoints, the points are written to the given buffer instead of new Points so a thread
+     * matching frame after frame does not allocate, whether the frames show the subimage or not.
+     *
+     * @param matchedPoints cleared, then filled with the matched points in raster order
+     * @return matchedPoints
+     */
+    public MatchedPoints findMatchingPoints(FrameContext frameContext, MatchedPoints matchedPoints) {
+        findMatchingPoints(frameContext, null, matchedPoints);
+        return matchedPoints;
+    }
 
-            try (Mat match_result = new Mat(size, CV_32FC1);
-                    Mat threshold_result = new Mat(size, CV_8UC1)) {
+    /**
+     * Searches only the windows around the points matched in the previous frame.
+     *
+     * @param frameContext the frame to search
+     * @param previousPoints the points matched in the previous frame
+     * @param radius how far, in pixels, a match may have moved since the previous frame
+     * @return the matched points, or null if one of the previous points could not be found again
+     * in which case the whole frame should be searched
+     */
+    public List<Point> trackMatchingPoints(FrameContext frameContext, List<Point> previousPoints, int radius) {
+        int resultCols = frameContext.getWidth() - subImageGrey.cols() + 1;
+        int resultRows = frameContext.getHeight() - subImageGrey.rows() + 1;
+        List<Rect> windows = new ArrayList<>();
+        for (Point point : previousPoints) {
+            int left = Math.max(0, point.x() - radius);
+            int top = Math.max(0, point.y() - radius);
+            int right = Math.min(resultCols, point.x() + radius + 1);
+            int bottom = Math.min(resultRows, point.y() + radius + 1);
+            if (left < right && top < bottom) {
+                windows.add(new Rect(left, top, right - left, bottom - top));
+            }
+        }
 
-                matchTemplate(mainImageGrey, subImageGrey, match_result, TM_CCOEFF_NORMED);
-//                imwrite("build/after_match.png", multiply(match_result, 255).asMat());
+        List<Point> trackedPoints = findMatchingPoints(frameContext, windows);
+        windows.forEach(Rect::close);
 
-                threshold(match_result, match_result, threshold, 1, THRESH_TOZERO);
-//                imwrite("build/"+frameIndex+"_after_threshold.png", multiply(match_result, 255).asMat());
+        for (Point previousPoint : previousPoints) {
+            boolean found = trackedPoints.stream().anyMatch((point) ->
+                    Math.abs(point.x() - previousPoint.x()) <= radius &&
+                            Math.abs(point.y() - previousPoint.y()) <= radius);
+            if (!found) {
+                return null;
+            }
+        }
+        return trackedPoints;
+    }
 
-                match_result.convertTo(threshold_result, CV_8UC1);
+    /**
+     * Searches only around the previous points moved by the scrolling of the frame, and in the tiles whose content
+     * is not the content of the previous frame moved by the scrolling: the strips revealed by the scrolling and
+     * whatever changed in place, see ScrollEstimator.changedTiles.
+     *
+     * @param frameContext the frame to search, it must know the tiles changed once the previous frame is moved
+     * @param previousPoints the points matched in the previous frame
+     * @param shift how far the content moved since the previous frame
+     * @param radius how far, in pixels, a moved point may be from its actual position
+     * @return the matched points, in raster order, or null if one of the moved points could not be found or the
+     * changed tiles are not known, in which case the whole frame should be searched
+     */
+    public List<Point> findShiftedMatchingPoints(FrameContext frameContext, List<Point> previousPoints,
+                                                 ScrollEstimator.Shift shift, int radius) {
+        TileHashes.Changes changedTiles = frameContext.getChangedTiles();
+        if (changedTiles == null) {
+            return null;
+        }
+        List<Point> shiftedPoints = new ArrayList<>();
+        for (Point point : previousPoints) {
+            shiftedPoints.add(new Point(point.x() + shift.getDx(), point.y() + shift.getDy()));
+        }
+        List<Point> matchedPoints = shiftedPoints.isEmpty() ? new ArrayList<>() :
+                trackMatchingPoints(frameContext, shiftedPoints, radius);
+        shiftedPoints.forEach(Point::close);
+        if (matchedPoints == null) {
+            return null;
+        }
+        matchedPoints = new ArrayList<>(matchedPoints);
 
-                Mat locationMat = new Mat();
-                findNonZero(threshold_result, locationMat);
-                List<Point> similarPoints = collectSimilarPointsFromMat(locationMat);
-                if (similarPoints.isEmpty()) {
-                    return matchedPoints;
+        // A subimage overlapping a changed tile was not in the previous frame, or not where the scrolling moved it
+        if (changedTiles.getChangedCount() > 0) {
+            List<Rect> searchAreas = changedTiles.searchAreas(subImageGrey.cols(), subImageGrey.rows());
+            for (Point point : findMatchingPoints(frameContext, searchAreas)) {
+                boolean known = matchedPoints.stream().anyMatch((matchedPoint) ->
+                        Math.abs(matchedPoint.x() - point.x()) <= radius &&
+                                Math.abs(matchedPoint.y() - point.y()) <= radius);
+                if (known) {
+                    point.close();
+                } else {
+                    matchedPoints.add(point);
                 }
+            }
+            searchAreas.forEach(Rect::close);
+        }
+
+        matchedPoints.sort(Comparator.comparingInt(Point::y).thenComparingInt(Point::x));
+        return matchedPoints;
+    }
+
+    /**
+     * Searches only the parts of the frame that changed since the previous frame.
+     * The previous points that do not overlap a changed tile are carried forward.
+     *
+     * @param frameContext the frame to search, it must know the changed tiles
+     * @param previousPoints the points matched in the previous frame
+     * @return the matched points, in raster order
+     */
+    public List<Point> findChangedMatchingPoints(FrameContext frameContext, List<Point> previousPoints) {
+        TileHashes.Changes changedTiles = frameContext.getChangedTiles();
+        if (changedTiles == null) {
+            return findMatchingPoints(frameContext);
+        }
 
-                int maxDistance = Math.min(subImage.cols(), subImage.rows());
-                List<Point> clusteredPoints = clusterPoints(similarPoints, maxDistance);
-                matchedPoints.addAll(clusteredPoints);
+        List<Point> matchedPoints = new ArrayList<>();
+        for (Point point : previousPoints) {
+            if (!changedTiles.intersects(point.x(), point.y(), subImageGrey.cols(), subImageGrey.rows())) {
+                matchedPoints.add(new Point(point.x(), point.y()));
             }
         }
+
+        if (changedTiles.getChangedCount() > 0) {
+            List<Rect> searchAreas = changedTiles.searchAreas(subImageGrey.cols(), subImageGrey.rows());
+            matchedPoints.addAll(findMatchingPoints(frameContext, searchAreas));
+            searchAreas.forEach(Rect::close);
+        }
+
+        matchedPoints.sort(Comparator.comparingInt(Point::y).thenComparingInt(Point::x));
         return matchedPoints;
     }
 
+    /**
+     * Matches only the windows around the given candidates, one window at a time, so the cost does not depend on
+     * the size of the frame. Of the matches closer than the size of the subimage only the best is kept.
+     *
+     * @param frameContext the frame to search
+     * @param candidates the top left corners where the subimage may be, e.g. found by a TemplateIndex
+     * @param radius how far, in pixels, a match may be from its candidate
+     * @return the matched points, in raster order
+     */
+    public List<Point> verifyCandidates(FrameContext frameContext, List<Point> candidates, int radius) {
+        if (candidates.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Mat mainImageGrey = frameContext.getGrey();
+        int maxDistance = Math.min(subImage.cols(), subImage.rows());
+        int resultCols = mainImageGrey.cols() - subImageGrey.cols() + 1;
+        int resultRows = mainImageGrey.rows() - subImageGrey.rows() + 1;
+        List<Rect> windows = new ArrayList<>();
+        for (Point candidate : candidates) {
+            int left = Math.max(0, candidate.x() - radius);
+            int top = Math.max(0, candidate.y() - radius);
+            int right = Math.min(resultCols, candidate.x() + radius + 1);
+            int bottom = Math.min(resultRows, candidate.y() + radius + 1);
+            if (left < right && top < bottom) {
+                windows.add(new Rect(left, top, right - left, bottom - top));
+            }
+        }
+        List<Point> matchedPoints = new ArrayList<>();
+        List<Double> matchedScores = new ArrayList<>();
+        if (matchMode != MatchMode.CORRELATION) {
+            MatchedPoints exactPoints = MATCH_BUFFERS.get().matchedPoints;
+            findExactPoints(mainImageGrey, windows, resultCols, resultRows, maxDistance, exactPoints);
+            matchedPoints.addAll(exactPoints.toPoints());
+            if (matchMode == MatchMode.EXACT) {
+                windows.forEach(Rect::close);
+                return matchedPoints;
+            }
+            // The exact matches are accepted first, the correlation adds the occurrences altered by the compression
+            matchedPoints.forEach((point) -> matchedScores.add((double) EXACT_HIT_SCORE));
+        }
+        for (Rect window : windows) {
+            try (Rect frameArea = new Rect(window.x(), window.y(),
+                    window.width() + subImageGrey.cols() - 1, window.height() + subImageGrey.rows() - 1);
+                 Mat frameRegion = new Mat(mainImageGrey, frameArea);
+                 Mat scores = new Mat();
+                 DoublePointer maxScore = new DoublePointer(1);
+                 Point maxLocation = new Point()) {
+                matchTemplate(frameRegion, subImageGrey, scores, TM_CCOEFF_NORMED);
+                minMaxLoc(scores, null, maxScore, null, maxLocation, null);
+                double score = maxScore.get();
+                if (score <= threshold) {
+                    continue;
+                }
+
+                int x = window.x() + maxLocation.x();
+                int y = window.y() + maxLocation.y();
+                int closest = -1;
+                for (int i = 0; i < matchedPoints.size() && closest < 0; i++) {
+                    if (Math.abs(matchedPoints.get(i).x() - x) < maxDistance &&
+                            Math.abs(matchedPoints.get(i).y() - y) < maxDistance) {
+                        closest = i;
+                    }
+                }
+                if (closest < 0) {
+                    matchedPoints.add(new Point(x, y));
+                    matchedScores.add(score);
+                } else if (score > matchedScores.get(closest)) {
+                    matchedPoints.get(closest).x(x).y(y);
+                    matchedScores.set(closest, score);
+                }
+            }
+        }
+        windows.forEach(Rect::close);
+
+        matchedPoints.sort(Comparator.comparingInt(Point::y).thenComparingInt(Point::x));
+        return matchedPoints;
+    }
+
+    /**
+     * @param searchAreas the areas of the result to match, null to search the whole frame
+     */
+    private List<Point> findMatchingPoints(FrameContext frameContext, List<Rect> searchAreas) {
+        MatchedPoints matchedPoints = MATCH_BUFFERS.get().matchedPoints;
+        findMatchingPoints(frameContext, searchAreas, matchedPoints);
+        return matchedPoints.toPoints();
+    }
+
+    /**
+     * @param searchAreas the areas of the result to match, null to search the whole frame
+     * @param matchedPoints cleared, then filled with the matched points in raster order
+     */
+    private void findMatchingPoints(FrameContext frameContext, List<Rect> searchAreas, MatchedPoints matchedPoints) {
+        matchedPoints.clear();
+        Mat mainImageGrey = frameContext.getGrey();
+        int maxDistance = Math.min(subImage.cols(), subImage.rows());
+        int resultCols = mainImageGrey.cols() - subImageGrey.cols() + 1;
+        int resultRows = mainImageGrey.rows() - subImageGrey.rows() + 1;
+        if (resultCols <= 0 || resultRows <= 0) {
+            return;
+        }
+        if (matchMode == MatchMode.EXACT) {
+            findExactPoints(mainImageGrey, searchAreas, resultCols, resultRows, maxDistance, matchedPoints);
+            return;
+        }
+
+        MatchBuffers buffers = MATCH_BUFFERS.get();
+        Mat match_result = buffers.createMatchResult(resultRows, resultCols);
+        computeScores(frameContext, searchAreas, match_result);
+//        imwrite("build/after_match.png", multiply(match_result, 255).asMat());
+
+        int hitCount = 0;
+        // Most frames do not contain the subimage, the best score is enough to tell
+        minMaxLoc(match_result, buffers.minScore, buffers.maxScore, null, null, null);
+        if (buffers.maxScore.get() > threshold) {
+            threshold(match_result, match_result, threshold, 1, THRESH_TOZERO);
+//        imwrite("build/"+frameIndex+"_after_threshold.png", multiply(match_result, 255).asMat());
+
+            match_result.convertTo(buffers.thresholdResult, CV_8UC1);
+            hitCount = collectHitsFromMat(buffers);
+        }
+
+        // The correlation runs even on the frames that show the subimage pixel for pixel, the exact matches are
+        // accepted whatever their score and the occurrences altered by the compression are still found
+        if (matchMode == MatchMode.AUTO) {
+            List<Point> exactPoints = exactMatcher.find(mainImageGrey, searchAreas);
+            hitCount = addExactHits(buffers, hitCount, exactPoints);
+            exactPoints.forEach(Point::close);
+        }
+        if (hitCount > 0) {
+            suppressNonMaxima(buffers, hitCount, resultCols, resultRows, maxDistance, matchedPoints);
+        }
+    }
+
+    /**
+     * Suppressed like the correlation hits, each exact match scoring EXACT_HIT_SCORE
+     *
+     * @param exactPoints cleared, then filled with the exact matches, one per occurrence, in raster order
+     */
+    private void findExactPoints(Mat mainImageGrey, List<Rect> searchAreas, int resultCols, int resultRows,
+                                 int maxDistance, MatchedPoints exactPoints) {
+        exactPoints.clear();
+        List<Point> foundPoints = exactMatcher.find(mainImageGrey, searchAreas);
+        MatchBuffers buffers = MATCH_BUFFERS.get();
+        int hitCount = addExactHits(buffers, 0, foundPoints);
+        foundPoints.forEach(Point::close);
+        if (hitCount > 0) {
+            suppressNonMaxima(buffers, hitCount, resultCols, resultRows, maxDistance, exactPoints);
+        }
+    }
+
     public void blurPoints(List<Point> matchedPoints, Mat mainImage) {
-        matchedPoints.forEach((point) -> {
-            Rect rect = new Rect(point.x(), point.y(), subImage.cols(), subImage.rows());
-            try (Mat region = new Mat(mainImage, rect)) {
-                blurredSubImage.copyTo(region);
+        if (matchedPoints.isEmpty()) {
+            return;
+        }
+
+        BytePointer source = blurredSubImage.data();
+        BytePointer destination = mainImage.data();
+        for (Point point : matchedPoints) {
+            copyBlurredSubImage(source, destination, point.x(), point.y(), mainImage);
+        }
+    }
+
+    public void blurPoints(MatchedPoints matchedPoints, Mat mainImage) {
+        if (matchedPoints.isEmpty()) {
+            return;
+        }
+
+        BytePointer source = blurredSubImage.data();
+        BytePointer destination = mainImage.data();
+        for (int i = 0; i < matchedPoints.size(); i++) {
+            copyBlurredSubImage(source, destination, matchedPoints.x(i), matchedPoints.y(i), mainImage);
+        }
+    }
+
+    /**
+     * Copies the blurred subimage row by row, without allocating a region per point
+     */
+    private void copyBlurredSubImage(BytePointer source, BytePointer destination, int x, int y, Mat mainImage) {
+        if (mainImage.type() != blurredSubImage.type() ||
+                x + blurredSubImage.cols() > mainImage.cols() ||
+                y + blurredSubImage.rows() > mainImage.rows()) {
+            copyBlurredRegion(x, y, mainImage);
+            return;
+        }
+        long pixelSize = mainImage.elemSize();
+        long rowSize = blurredSubImage.cols() * pixelSize;
+        long sourceStep = blurredSubImage.step1() * blurredSubImage.elemSize1();
+        long destinationStep = mainImage.step1() * mainImage.elemSize1();
+        for (int row = 0; row < blurredSubImage.rows(); row++) {
+            destination.position((y + row) * destinationStep + x * pixelSize);
+            source.position(row * sourceStep);
+            Pointer.memcpy(destination, source, rowSize);
+        }
+    }
+
+    /**
+     * Masks a YUV420P frame in place, the blurred subimage is written to the Y, U and V planes
+     *
+     * @param yuvFrame a YUV420P frame laid out as a single channel Mat of height * 3 / 2 rows
+     */
+    public void blurPointsI420(List<Point> matchedPoints, Mat yuvFrame) {
+        if (matchedPoints.isEmpty()) {
+            return;
+        }
+
+        int width = yuvFrame.cols();
+        int height = yuvFrame.rows() * 2 / 3;
+        try (YuvPlanes framePlanes = YuvPlanes.of(yuvFrame, width, height)) {
+            for (Point point : matchedPoints) {
+                YuvPlanes blurredPlanes = getBlurredSubImagePlanes(point.x() % 2, point.y() % 2);
+                copyPlanes(blurredPlanes, framePlanes, point.x(), point.y(), subImage.cols(), subImage.rows());
+            }
+        }
+    }
+
+    /**
+     * Covers the rectangle with the blurred subimage stretched to its size. A rectangle of the size of the
+     * subimage is masked the same as its top left point.
+     */
+    public void blurRect(Rect rect, Mat mainImage) {
+        if (rect.width() == subImage.cols() && rect.height() == subImage.rows()) {
+            try (Point point = new Point(rect.x(), rect.y())) {
+                blurPoints(Collections.singletonList(point), mainImage);
+            }
+            return;
+        }
+        try (Size size = new Size(rect.width(), rect.height());
+             Mat stretched = new Mat()) {
+            resize(blurredSubImage, stretched, size);
+            copyRegion(stretched, 0, 0, mainImage, rect.x(), rect.y(), rect.width(), rect.height());
+        }
+    }
+
+    /**
+     * Same as blurRect for a YUV420P frame
+     *
+     * @param yuvFrame a YUV420P frame laid out as a single channel Mat of height * 3 / 2 rows
+     */
+    public void blurRectI420(Rect rect, Mat yuvFrame) {
+        if (rect.width() == subImage.cols() && rect.height() == subImage.rows()) {
+            try (Point point = new Point(rect.x(), rect.y())) {
+                blurPointsI420(Collections.singletonList(point), yuvFrame);
+            }
+            return;
+        }
+        int width = yuvFrame.cols();
+        int height = yuvFrame.rows() * 2 / 3;
+        try (Size size = new Size(rect.width(), rect.height());
+             Mat stretched = new Mat()) {
+            resize(blurredSubImage, stretched, size);
+            try (Mat stretchedI420 = toI420(stretched, rect.x() % 2, rect.y() % 2);
+                 YuvPlanes stretchedPlanes = YuvPlanes.of(stretchedI420, stretchedI420.cols(),
+                         stretchedI420.rows() * 2 / 3);
+                 YuvPlanes framePlanes = YuvPlanes.of(yuvFrame, width, height)) {
+                copyPlanes(stretchedPlanes, framePlanes, rect.x(), rect.y(), rect.width(), rect.height());
+            }
+        }
+    }
+
+    /**
+     * Chroma is subsampled, at an odd position the image shares its first chroma samples with the pixels before it.
+     * The source planes must come from toI420 with the parity of the position.
+     */
+    private static void copyPlanes(YuvPlanes source, YuvPlanes destination, int x, int y, int width, int height) {
+        copyRegion(source.y, x % 2, y % 2, destination.y, x, y, width, height);
+        copyRegion(source.u, 0, 0, destination.u, x / 2, y / 2, source.u.cols(), source.u.rows());
+        copyRegion(source.v, 0, 0, destination.v, x / 2, y / 2, source.v.cols(), source.v.rows());
+    }
+
+    /**
+     * @return the image converted to I420, padded by one pixel on the left and the top at an odd position so it starts
+     * on a chroma sample, and to an even size as required by the chroma subsampling
+     */
+    private static Mat toI420(Mat image, int left, int top) {
+        try (Mat padded = new Mat()) {
+            copyMakeBorder(image, padded, top, (top + image.rows()) % 2,
+                    left, (left + image.cols()) % 2, BORDER_REPLICATE);
+            Mat i420 = new Mat();
+            cvtColor(padded, i420, COLOR_BGR2YUV_I420);
+            return i420;
+        }
+    }
+
+    private static void copyRegion(Mat source, int sourceX, int sourceY, Mat destination, int x, int y,
+                                   int width, int height) {
+        int clippedWidth = Math.min(Math.min(width, source.cols() - sourceX), destination.cols() - x);
+        int clippedHeight = Math.min(Math.min(height, source.rows() - sourceY), destination.rows() - y);
+        if (clippedWidth <= 0 || clippedHeight <= 0) {
+            return;
+        }
+        try (Rect sourceRect = new Rect(sourceX, sourceY, clippedWidth, clippedHeight);
+             Rect destinationRect = new Rect(x, y, clippedWidth, clippedHeight);
+             Mat sourceRegion = new Mat(source, sourceRect);
+             Mat destinationRegion = new Mat(destination, destinationRect)) {
+            sourceRegion.copyTo(destinationRegion);
+        }
+    }
+
+    /**
+     * The blurred subimage converted once to I420 for each parity of the position
+     */
+    private synchronized YuvPlanes getBlurredSubImagePlanes(int left, int top) {
+        int parity = top * 2 + left;
+        if (blurredSubImagePlanes[parity] == null) {
+            Mat i420 = toI420(blurredSubImage, left, top);
+            blurredSubImageI420[parity] = i420;
+            blurredSubImagePlanes[parity] = YuvPlanes.of(i420, i420.cols(), i420.rows() * 2 / 3);
+        }
+        return blurredSubImagePlanes[parity];
+    }
+
+    private void copyBlurredRegion(int x, int y, Mat mainImage) {
+        Rect rect = new Rect(x, y, subImage.cols(), subImage.rows());
+        try (Mat region = new Mat(mainImage, rect)) {
+            blurredSubImage.copyTo(region);
+        }
+        rect.close();
+    }
+
+    //~~~~ Matching methods
+
+    /**
+     * Fills the result with the TM_CCOEFF_NORMED score of each position. Positions that cannot reach the
+     * threshold may be left at zero.
+     */
+    private void computeScores(FrameContext frameContext, List<Rect> searchAreas, Mat result) {
+        Mat mainImageGrey = frameContext.getGrey();
+        if (searchAreas != null) {
+            result.put(Scalar.all(0));
+            matchAreas(mainImageGrey, searchAreas, result);
+            return;
+        }
+
+        int levels = getPyramidLevels();
+        if (levels == 0 && spectrumMatching && spectrumMatcher != null) {
+            MatchBuffers buffers = MATCH_BUFFERS.get();
+            spectrumMatcher.computeScores(frameContext, result, buffers.spectrumProduct, buffers.spectrumCorrelation);
+            return;
+        }
+        if (levels == 0 && prefilter && prefilterSuitable) {
+            long start = System.nanoTime();
+            List<Rect> candidateAreas = WindowStatistics.findCandidateAreas(frameContext,
+                    subImageGrey.cols(), subImageGrey.rows(), result.cols(), result.rows());
+            long positions = (long) result.cols() * result.rows();
+            long candidatePositions = positions;
+            if (candidateAreas != null) {
+                candidatePositions = candidateAreas.stream().mapToLong(area -> (long) area.width() * area.height()).sum();
+            }
+            prefilteredPositions.addAndGet(positions);
+            rejectedPositions.addAndGet(positions - candidatePositions);
+            prefilterNanos.addAndGet(System.nanoTime() - start);
+
+            if (candidateAreas != null) {
+                result.put(Scalar.all(0));
+                matchAreas(mainImageGrey, candidateAreas, result);
+                candidateAreas.forEach(Rect::close);
+                return;
+            }
+        }
+        if (levels == 0) {
+            matchBands(mainImageGrey, result);
+            return;
+        }
+
+        result.put(Scalar.all(0));
+        List<Rect> candidateAreas = findPyramidCandidates(frameContext, levels, result.cols(), result.rows());
+        matchAreas(mainImageGrey, candidateAreas, result);
+        candidateAreas.forEach(Rect::close);
+    }
+
+    /**
+     * Matches the downscaled subimage against the downscaled frame.
+     * Each coarse position above the relaxed threshold is turned into a window of full resolution positions,
+     * widened by one coarse position on each side to absorb the rounding of the downscaling.
+     *
+     * @return the areas of the result, in full resolution positions, that need to be matched
+     */
+    private List<Rect> findPyramidCandidates(FrameContext frameContext, int levels, int resultCols, int resultRows) {
+        List<Rect> areas = new ArrayList<>();
+        Mat frameLevel = frameContext.getLevel(levels);
+        Mat subImageLevel = getSubImageGreyLevel(levels);
+        if (frameLevel.cols() < subImageLevel.cols() || frameLevel.rows() < subImageLevel.rows()) {
+            areas.add(new Rect(0, 0, resultCols, resultRows));
+            return areas;
+        }
+
+        int scale = 1 << levels;
+        double coarseThreshold = Math.max(0, threshold - PYRAMID_THRESHOLD_MARGIN_PER_LEVEL * levels);
+        try (Mat coarseResult = new Mat();
+             Mat coarseCandidates = new Mat();
+             Mat coarseWindows = new Mat();
+             Mat kernel = new Mat()) {
+            matchTemplate(frameLevel, subImageLevel, coarseResult, TM_CCOEFF_NORMED);
+            threshold(coarseResult, coarseResult, coarseThreshold, 1, THRESH_BINARY);
+            coarseResult.convertTo(coarseCandidates, CV_8UC1);
+            dilate(coarseCandidates, coarseWindows, kernel);
+
+            // Merge the windows on each coarse row into runs
+            UByteIndexer indexer = coarseWindows.createIndexer();
+            int coarseCols = coarseWindows.cols();
+            int coarseRows = coarseWindows.rows();
+            for (int y = 0; y < coarseRows; y++) {
+                int x = 0;
+                while (x < coarseCols) {
+                    if (indexer.get(y, x) == 0) {
+                        x++;
+                        continue;
+                    }
+                    int runStart = x;
+                    while (x < coarseCols && indexer.get(y, x) != 0) {
+                        x++;
+                    }
+
+                    // The last coarse row and column also cover the positions lost to the downscaling
+                    int left = runStart * scale;
+                    int right = x == coarseCols ? resultCols : Math.min(x * scale, resultCols);
+                    int top = y * scale;
+                    int bottom = y == coarseRows - 1 ? resultRows : Math.min((y + 1) * scale, resultRows);
+                    if (left < right && top < bottom) {
+                        areas.add(new Rect(left, top, right - left, bottom - top));
+                    }
+                }
+            }
+            indexer.release();
+        }
+        return areas;
+    }
+
+    /**
+     * Runs the full resolution match only over the given areas of the result
+     */
+    private void matchAreas(Mat mainImageGrey, List<Rect> resultAreas, Mat result) {
+        for (Rect area : resultAreas) {
+            try (Rect frameArea = new Rect(area.x(), area.y(),
+                    area.width() + subImageGrey.cols() - 1, area.height() + subImageGrey.rows() - 1);
+                 Mat frameRegion = new Mat(mainImageGrey, frameArea);
+                 Mat resultRegion = new Mat(result, area)) {
+                matchTemplate(frameRegion, subImageGrey, resultRegion, TM_CCOEFF_NORMED);
+            }
+        }
+    }
+
+    private void matchBands(Mat mainImageGrey, Mat result) {
+        int bandCount = bandPool == null ? 1 : Math.min(bandPool.getParallelism(), result.rows() / MIN_BAND_ROWS);
+        if (bandCount < 2) {
+            matchTemplate(mainImageGrey, subImageGrey, result, TM_CCOEFF_NORMED);
+            return;
+        }
+
+        List<Rect> bands = new ArrayList<>();
+        for (int i = 0; i < bandCount; i++) {
+            int top = i * result.rows() / bandCount;
+            int bottom = (i + 1) * result.rows() / bandCount;
+            bands.add(new Rect(0, top, result.cols(), bottom - top));
+        }
+        bandPool.invoke(new MatchAreasTask(mainImageGrey, bands, result));
+        bands.forEach(Rect::close);
+    }
+
+    /**
+     * Matches disjoint areas of the result in parallel, each task writes to its own part of the result
+     */
+    private class MatchAreasTask extends RecursiveAction {
+        private final Mat mainImageGrey;
+        private final List<Rect> resultAreas;
+        private final Mat result;
+
+        MatchAreasTask(Mat mainImageGrey, List<Rect> resultAreas, Mat result) {
+            this.mainImageGrey = mainImageGrey;
+            this.resultAreas = resultAreas;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (resultAreas.size() <= 1) {
+                matchAreas(mainImageGrey, resultAreas, result);
+                return;
             }
-            rect.close();
-        });
+            int middle = resultAreas.size() / 2;
+            invokeAll(new MatchAreasTask(mainImageGrey, resultAreas.subList(0, middle), result),
+                    new MatchAreasTask(mainImageGrey, resultAreas.subList(middle, resultAreas.size()), result));
+        }
+    }
+
+    /**
+     * Keeps the memory mapped bundle holding the pixels of the subimage alive as long as the masker
+     */
+    void setMappedPixels(ByteBuffer mappedPixels) {
+        this.mappedPixels = mappedPixels;
+    }
+
+    Mat getSubImage() {
+        return subImage;
+    }
+
+    Mat getBlurredSubImage() {
+        return blurredSubImage;
+    }
+
+    /**
+     * @param level the pyramid level, 0 for the full resolution grey subimage
+     */
+    synchronized Mat getSubImageGreyLevel(int level) {
+        while (subImageGreyLevels.size() <= level) {
+            Mat downscaled = new Mat();
+            pyrDown(subImageGreyLevels.get(subImageGreyLevels.size() - 1), downscaled);
+            subImageGreyLevels.add(downscaled);
+        }
+        return subImageGreyLevels.get(level);
     }
 
     //~~~~ Processing methods
 
-    private static List<Point> collectSimilarPointsFromMat(Mat mat) {
-        List<Point> list = new ArrayList<>();
-        try {
-            IntRawIndexer indexer = mat.createIndexer();
-            for (int y = 0; y < mat.rows(); y++) {
-                for (int x = 0; x < mat.cols(); x++) {
-                    int pointX = indexer.get(x, y, 0);
-                    int pointY = indexer.get(x, y, 1);
-                    list.add(new Point(pointX, pointY));
+    /**
+     * Copies the positions left non zero by the threshold into the hits array as x, y pairs, in raster order, and
+     * their scores. The rows are scanned through pointers kept from frame to frame rather than with findNonZero,
+     * whose output and pointers would be allocated for every frame with hits.
+     *
+     * @return the number of hits
+     */
+    private static int collectHitsFromMat(MatchBuffers buffers) {
+        Mat scores = buffers.matchResult;
+        Mat thresholdResult = buffers.thresholdResult;
+        buffers.updateDataPointers();
+        int cols = thresholdResult.cols();
+        int rows = thresholdResult.rows();
+        long thresholdStep = thresholdResult.step1();
+        long scoreStep = scores.step1();
+        byte[] row = buffers.thresholdRow;
+
+        int hitCount = 0;
+        for (int y = 0; y < rows; y++) {
+            buffers.thresholdData.position(y * thresholdStep).get(row, 0, cols);
+            for (int x = 0; x < cols; x++) {
+                if (row[x] == 0) {
+                    continue;
                 }
+                buffers.ensureHitCapacity(hitCount + 1);
+                buffers.hits[2 * hitCount] = x;
+                buffers.hits[2 * hitCount + 1] = y;
+                buffers.hitScores[hitCount] = buffers.scoreData.get(y * scoreStep + x);
+                hitCount++;
             }
-        } catch (NullPointerException ex) {
-            //Do nothing
         }
+        return hitCount;
+    }
 
-        return list;
+    /**
+     * Appends the exact matches to the hits, with EXACT_HIT_SCORE
+     *
+     * @return the number of hits
+     */
+    private static int addExactHits(MatchBuffers buffers, int hitCount, List<Point> exactPoints) {
+        buffers.ensureHitCapacity(hitCount + exactPoints.size());
+        for (Point point : exactPoints) {
+            buffers.hits[2 * hitCount] = point.x();
+            buffers.hits[2 * hitCount + 1] = point.y();
+            buffers.hitScores[hitCount] = EXACT_HIT_SCORE;
+            hitCount++;
+        }
+        return hitCount;
     }
 
-    private static List<Point> clusterPoints(List<Point> list, int maxDistance) {
-        Point previous = list.get(0);
-        List<Point> clustered = new ArrayList<>();
-        clustered.add(previous);
-        for (Point point : list) {
-            int distance = euclideanDistance(previous, point);
-            if (distance > maxDistance) {
-                clustered.add(point);
+    /**
+     * Keeps the best scoring hit of each occurrence, for the correlation and the exact hits alike.
+     *
+     * The hits are bucketed in a grid of maxDistance cells and only the best hit of each cell competes.
+     * The cell winners are visited from the best score down, a winner is kept unless a kept winner lies within
+     * maxDistance, which can only be in one of the 9 surrounding cells. Equal scores are visited in raster order,
+     * whatever the order the hits were collected in.
+     * Linear in the number of hits, the sort only involves one winner per cell.
+     *
+     * @param keptPoints filled with the kept points in raster order
+     */
+    private static void suppressNonMaxima(MatchBuffers buffers, int hitCount, int resultCols, int resultRows,
+                                          int maxDistance, MatchedPoints keptPoints) {
+        int cellSize = Math.max(1, maxDistance);
+        int cellCols = (resultCols + cellSize - 1) / cellSize;
+        int cellRows = (resultRows + cellSize - 1) / cellSize;
+        buffers.ensureCapacity(hitCount, cellCols * cellRows);
+        int[] hits = buffers.hits;
+        float[] hitScores = buffers.hitScores;
+        int[] cellBest = buffers.cellBest;
+        int[] cellKept = buffers.cellKept;
+        int[] touchedCells = buffers.touchedCells;
+        long[] order = buffers.order;
+
+        // Best hit of each cell, the first one of equal scores in raster order
+        int touchedCount = 0;
+        for (int i = 0; i < hitCount; i++) {
+            int x = hits[2 * i];
+            int y = hits[2 * i + 1];
+            int cell = (y / cellSize) * cellCols + x / cellSize;
+            int best = cellBest[cell];
+            if (best < 0) {
+                touchedCells[touchedCount++] = cell;
+                cellBest[cell] = i;
+            } else if (hitScores[i] > hitScores[best] || (hitScores[i] == hitScores[best] &&
+                    (y < hits[2 * best + 1] || (y == hits[2 * best + 1] && x < hits[2 * best])))) {
+                cellBest[cell] = i;
             }
-            previous = point;
         }
-        return clustered;
+
+        // Best score first, ties broken by raster order. The scores are positive so their bits sort like them.
+        for (int t = 0; t < touchedCount; t++) {
+            int best = cellBest[touchedCells[t]];
+            long position = (long) hits[2 * best + 1] * resultCols + hits[2 * best];
+            order[t] = ((long) (Integer.MAX_VALUE - Float.floatToIntBits(hitScores[best])) << 32) | position;
+        }
+        Arrays.sort(order, 0, touchedCount);
+
+        long maxDistanceSquared = (long) maxDistance * maxDistance;
+        int keptCount = 0;
+        for (int t = 0; t < touchedCount; t++) {
+            int position = (int) order[t];
+            int x = position % resultCols;
+            int y = position / resultCols;
+            int cellX = x / cellSize;
+            int cellY = y / cellSize;
+            if (!hasKeptNeighbour(buffers, x, y, cellX, cellY, cellCols, cellRows, resultCols, maxDistanceSquared)) {
+                cellKept[cellY * cellCols + cellX] = position;
+                order[keptCount++] = position;
+            }
+        }
+
+        Arrays.sort(order, 0, keptCount);
+        for (int k = 0; k < keptCount; k++) {
+            int position = (int) order[k];
+            keptPoints.add(position % resultCols, position / resultCols);
+        }
+
+        for (int t = 0; t < touchedCount; t++) {
+            cellBest[touchedCells[t]] = -1;
+            cellKept[touchedCells[t]] = -1;
+        }
+    }
+
+    /**
+     * @return true if a kept hit, stored as its position in raster order, lies within the distance
+     */
+    private static boolean hasKeptNeighbour(MatchBuffers buffers, int x, int y, int cellX, int cellY,
+                                            int cellCols, int cellRows, int resultCols, long maxDistanceSquared) {
+        for (int neighbourY = Math.max(0, cellY - 1); neighbourY <= Math.min(cellRows - 1, cellY + 1); neighbourY++) {
+            for (int neighbourX = Math.max(0, cellX - 1); neighbourX <= Math.min(cellCols - 1, cellX + 1); neighbourX++) {
+                int kept = buffers.cellKept[neighbourY * cellCols + neighbourX];
+                if (kept < 0) {
+                    continue;
+                }
+                long dx = kept % resultCols - x;
+                long dy = kept / resultCols - y;
+                if (dx * dx + dy * dy <= maxDistanceSquared) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
-    private static int euclideanDistance(Point p1, Point p2) {
-        return (new Double(Math.sqrt(Math.pow(p1.x() - p2.x(), 2) + Math.pow(p1.y() - p2.y(), 2)))).intValue();
+    /**
+     * How the subimage is found in the frames
+     */
+    public enum MatchMode {
+        /**
+         * Normalized cross correlation above the threshold, tolerates the compression of the frames
+         */
+        CORRELATION,
+        /**
+         * Only the windows holding exactly the pixels of the subimage, for lossless sources. The cost does not
+         * depend on the size of the subimage, the threshold is not used.
+         */
+        EXACT,
+        /**
+         * Correlation, plus the windows holding exactly the pixels of the subimage, which are accepted whatever
+         * their score. An exact match never hides an occurrence altered by the compression elsewhere in the frame.
+         */
+        AUTO
+    }
+
+    /**
+     * The buffers used while matching, reused across frames and subimages by the thread that owns them
+     */
+    private static class MatchBuffers {
+        private final Mat matchResult;
+        private final Mat thresholdResult;
+        private final DoublePointer minScore;
+        private final DoublePointer maxScore;
+        private final Mat spectrumProduct;
+        private final Mat spectrumCorrelation;
+        private int[] hits;
+        private float[] hitScores;
+        private long[] order;
+        private int[] cellBest;
+        private int[] cellKept;
+        private int[] touchedCells;
+        private final MatchedPoints matchedPoints;
+        private FloatPointer scoreData;
+        private BytePointer thresholdData;
+        private byte[] thresholdRow;
+
+        MatchBuffers() {
+            this.matchResult = new Mat();
+            this.thresholdResult = new Mat();
+            this.minScore = new DoublePointer(1);
+            this.maxScore = new DoublePointer(1);
+            this.spectrumProduct = new Mat();
+            this.spectrumCorrelation = new Mat();
+            this.hits = new int[64];
+            this.hitScores = new float[0];
+            this.order = new long[0];
+            this.cellBest = new int[0];
+            this.cellKept = new int[0];
+            this.touchedCells = new int[0];
+            this.matchedPoints = new MatchedPoints();
+            this.thresholdRow = new byte[0];
+        }
+
+        /**
+         * The match result is only reallocated when its size changes, which also drops the pointers to its data
+         */
+        Mat createMatchResult(int rows, int cols) {
+            if (rows != matchResult.rows() || cols != matchResult.cols()) {
+                scoreData = null;
+                thresholdData = null;
+            }
+            matchResult.create(rows, cols, CV_32FC1);
+            return matchResult;
+        }
+
+        /**
+         * Points at the data of the match result and of its threshold, once they both have the size of the result.
+         * Neither is reallocated while the size stays the same, so the pointers are kept until it changes.
+         */
+        void updateDataPointers() {
+            if (scoreData != null) {
+                return;
+            }
+            scoreData = new FloatPointer(matchResult.data());
+            thresholdData = thresholdResult.data();
+            if (thresholdRow.length < matchResult.cols()) {
+                thresholdRow = new byte[matchResult.cols()];
+            }
+        }
+
+        /**
+         * Grows the hits and their scores, keeping the ones already collected
+         */
+        void ensureHitCapacity(int hitCount) {
+            if (hits.length < hitCount * 2) {
+                hits = Arrays.copyOf(hits, hitCount * 4);
+            }
+            if (hitScores.length < hitCount) {
+                hitScores = Arrays.copyOf(hitScores, hitCount * 2);
+            }
+        }
+
+        /**
+         * Grows the arrays used by the non maximum suppression, the cells are left at -1 between two calls
+         */
+        void ensureCapacity(int hitCount, int cellCount) {
+            int winnerCount = Math.min(hitCount, cellCount);
+            if (order.length < winnerCount) {
+                order = new long[winnerCount * 2];
+                touchedCells = new int[winnerCount * 2];
+            }
+            if (cellBest.length < cellCount) {
+                cellBest = new int[cellCount];
+                cellKept = new int[cellCount];
+                Arrays.fill(cellBest, -1);
+                Arrays.fill(cellKept, -1);
+            }
+        }
+
+        void release() {
+            matchResult.release();
+            thresholdResult.release();
+            spectrumProduct.release();
+            spectrumCorrelation.release();
+            minScore.close();
+            maxScore.close();
+        }
     }
 
     @Override
     public void close() throws Exception {
         subImage.close();
-        subImageGrey.close();
+        blurredSubImage.close();
+        for (int parity = 0; parity < blurredSubImagePlanes.length; parity++) {
+            if (blurredSubImagePlanes[parity] != null) {
+                blurredSubImagePlanes[parity].close();
+                blurredSubImageI420[parity].close();
+            }
+        }
+        subImageGreyLevels.forEach(Mat::close);
+        if (spectrumMatcher != null) {
+            spectrumMatcher.release();
+        }
     }
 }
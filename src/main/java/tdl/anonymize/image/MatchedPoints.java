@@ -0,0 +1,72 @@
+package tdl.anonymize.image;
+
+import org.bytedeco.javacpp.opencv_core.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The top left corners matched by a masker, stored as x, y pairs in an array that is reused from frame to frame.
+ * Unlike a list of Points, filling it again does not allocate once it is large enough for the matches of a frame.
+ * Not thread safe, each thread matching frames keeps its own.
+ */
+public class MatchedPoints {
+    private int[] coordinates = new int[16];
+    private int size;
+
+    /**
+     * @return the number of matched points
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int x(int index) {
+        checkIndex(index);
+        return coordinates[2 * index];
+    }
+
+    public int y(int index) {
+        checkIndex(index);
+        return coordinates[2 * index + 1];
+    }
+
+    /**
+     * @return the points as new Points, owned by the caller
+     */
+    public List<Point> toPoints() {
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        List<Point> points = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            points.add(new Point(coordinates[2 * i], coordinates[2 * i + 1]));
+        }
+        return points;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    void add(int x, int y) {
+        if (coordinates.length < 2 * (size + 1)) {
+            coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+        }
+        coordinates[2 * size] = x;
+        coordinates[2 * size + 1] = y;
+        size++;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+    }
+}
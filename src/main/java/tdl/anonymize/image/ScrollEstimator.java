@@ -0,0 +1,196 @@
+package tdl.anonymize.image;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Point2d;
+import org.bytedeco.javacpp.opencv_core.Size;
+
+import java.nio.FloatBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32F;
+import static org.bytedeco.javacpp.opencv_imgproc.createHanningWindow;
+import static org.bytedeco.javacpp.opencv_imgproc.phaseCorrelate;
+
+/**
+ * Estimates the global translation between two consecutive frames by phase correlation, as when the view of an
+ * editor or a terminal scrolls.
+ *
+ * The correlation runs on the luma downscaled by 2^LEVEL, the shift is only precise to a few pixels at full
+ * resolution and the matches moved by it must be verified within getRadius. The shift is rejected when the peak
+ * of the correlation is weak, which is the case when only a part of the frame moved or the content changed.
+ *
+ * Content may still change in a frame that scrolled, e.g. a line typed in the middle of the screen. changedTiles
+ * tells which parts of the frame are not the frame before moved by the shift.
+ */
+public class ScrollEstimator {
+    private static final int LEVEL = 2;
+    private static final double MIN_RESPONSE = 0.3;
+    /**
+     * The side of the tiles compared by changedTiles, in full resolution pixels
+     */
+    private static final int TILE_SIZE = 32;
+    /**
+     * Above this mean absolute difference of the downscaled luma a tile changed. Below it, the difference is the
+     * compression or the rounding of the shift.
+     */
+    private static final double MAX_MEAN_DIFFERENCE = 8;
+
+    private Mat window;
+
+    /**
+     * @return the downscaled luma of the frame as needed by estimate, owned by the caller
+     */
+    public static Mat prepare(FrameContext frameContext) {
+        Mat image = new Mat();
+        frameContext.getLevel(LEVEL).convertTo(image, CV_32F);
+        return image;
+    }
+
+    /**
+     * @param previous the prepared frame before
+     * @param current the prepared frame
+     * @return how far the content of the frame moved since the frame before, in full resolution pixels,
+     * null if the frames do not differ by a clear translation
+     */
+    public Shift estimate(Mat previous, Mat current) {
+        if (previous.cols() != current.cols() || previous.rows() != current.rows()) {
+            return null;
+        }
+
+        double[] response = new double[1];
+        int dx;
+        int dy;
+        try (Point2d shift = phaseCorrelate(previous, current, getWindow(current), response)) {
+            dx = (int) Math.round(shift.x() * (1 << LEVEL));
+            dy = (int) Math.round(shift.y() * (1 << LEVEL));
+        }
+        if (response[0] < MIN_RESPONSE) {
+            return null;
+        }
+        return new Shift(dx, dy);
+    }
+
+    /**
+     * Compares the frame with the frame before moved by the shift, tile by tile on the downscaled luma. The tiles
+     * revealed by the scrolling, widened by getRadius, always changed. A line of text misaligned by the rounding of
+     * the shift may count as changed too, a change of the content cannot count as unchanged.
+     *
+     * @param previous the prepared frame before
+     * @param current the prepared frame
+     * @param shift the shift estimated between them
+     * @param width the width of the frame at full resolution
+     * @param height the height of the frame at full resolution
+     * @return the tiles whose content is not the content of the frame before moved by the shift
+     */
+    public TileHashes.Changes changedTiles(Mat previous, Mat current, Shift shift, int width, int height) {
+        int tileCols = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tileRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        boolean[] changed = new boolean[tileCols * tileRows];
+        markRevealedTiles(shift, width, height, tileCols, tileRows, changed);
+
+        int levelTileSize = TILE_SIZE >> LEVEL;
+        int dx = Math.round((float) shift.getDx() / (1 << LEVEL));
+        int dy = Math.round((float) shift.getDy() / (1 << LEVEL));
+        int cols = current.cols();
+        int rows = current.rows();
+        double[] differences = new double[changed.length];
+        int[] pixelCounts = new int[changed.length];
+        FloatBuffer previousPixels = previous.createBuffer();
+        FloatBuffer currentPixels = current.createBuffer();
+        int previousStep = (int) previous.step1();
+        int currentStep = (int) current.step1();
+        for (int y = 0; y < rows; y++) {
+            int tileRow = Math.min(tileRows - 1, y / levelTileSize);
+            int sourceY = y - dy;
+            for (int x = 0; x < cols; x++) {
+                int tile = tileRow * tileCols + Math.min(tileCols - 1, x / levelTileSize);
+                int sourceX = x - dx;
+                if (sourceX < 0 || sourceY < 0 || sourceX >= cols || sourceY >= rows) {
+                    changed[tile] = true;
+                    continue;
+                }
+                differences[tile] += Math.abs(currentPixels.get(y * currentStep + x) -
+                        previousPixels.get(sourceY * previousStep + sourceX));
+                pixelCounts[tile]++;
+            }
+        }
+
+        for (int tile = 0; tile < changed.length; tile++) {
+            if (pixelCounts[tile] > 0 && differences[tile] > MAX_MEAN_DIFFERENCE * pixelCounts[tile]) {
+                changed[tile] = true;
+            }
+        }
+        return TileHashes.changes(width, height, TILE_SIZE, changed);
+    }
+
+    /**
+     * The shift is only precise to getRadius, so are the strips it reveals
+     */
+    private void markRevealedTiles(Shift shift, int width, int height, int tileCols, int tileRows,
+                                   boolean[] changed) {
+        int revealedRows = Math.min(height, Math.abs(shift.getDy()) + getRadius());
+        int revealedCols = Math.min(width, Math.abs(shift.getDx()) + getRadius());
+        for (int tileRow = 0; tileRow < tileRows; tileRow++) {
+            int top = tileRow * TILE_SIZE;
+            int bottom = Math.min(height, top + TILE_SIZE);
+            boolean revealedRow = (shift.getDy() > 0 && top < revealedRows) ||
+                    (shift.getDy() < 0 && bottom > height - revealedRows);
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                int left = tileCol * TILE_SIZE;
+                int right = Math.min(width, left + TILE_SIZE);
+                boolean revealedCol = (shift.getDx() > 0 && left < revealedCols) ||
+                        (shift.getDx() < 0 && right > width - revealedCols);
+                if (revealedRow || revealedCol) {
+                    changed[tileRow * tileCols + tileCol] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how far, in pixels, a match moved by the estimated shift can be from its actual position
+     */
+    public int getRadius() {
+        return 1 << LEVEL;
+    }
+
+    /**
+     * The Hanning window reduces the edge effects, it only depends on the size of the frames
+     */
+    private synchronized Mat getWindow(Mat image) {
+        if (window == null || window.cols() != image.cols() || window.rows() != image.rows()) {
+            if (window != null) {
+                window.release();
+            }
+            window = new Mat();
+            try (Size size = new Size(image.cols(), image.rows())) {
+                createHanningWindow(window, size, CV_32F);
+            }
+        }
+        return window;
+    }
+
+    /**
+     * A translation of the content of the frame, positive when it moves right or down
+     */
+    public static class Shift {
+        private final int dx;
+        private final int dy;
+
+        Shift(int dx, int dy) {
+            this.dx = dx;
+            this.dy = dy;
+        }
+
+        public int getDx() {
+            return dx;
+        }
+
+        public int getDy() {
+            return dy;
+        }
+
+        public boolean isZero() {
+            return dx == 0 && dy == 0;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package tdl.anonymize.image;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Computes the TM_CCOEFF_NORMED scores of a whole frame in the frequency domain, for the large subimages.
+ *
+ * The subimage only changes once: its mean is removed, its norm and its spectrum at the size of the frame spectrum
+ * are computed once and kept. The spectrum of the frame is computed once per frame by the FrameContext and shared
+ * by all the subimages, as are the integral images giving the statistics of each window. Each frame then costs a
+ * multiplication of the spectra and one inverse transform per subimage.
+ *
+ * The frame spectrum is at least as large as the frame, the correlation of the valid positions does not wrap.
+ */
+class SpectrumMatcher {
+    /**
+     * Below this area matchTemplate on the frame is cheaper than the transforms
+     */
+    static final int MIN_SUBIMAGE_AREA = 64 * 64;
+
+    private final Mat zeroMeanSubImage;
+    private final int width;
+    private final int height;
+    private final double norm;
+    private Mat spectrum;
+
+    /**
+     * @param subImageGrey the single channel subimage, it must not be flat
+     */
+    SpectrumMatcher(Mat subImageGrey) {
+        this.width = subImageGrey.cols();
+        this.height = subImageGrey.rows();
+        this.zeroMeanSubImage = new Mat();
+        try (Scalar mean = mean(subImageGrey)) {
+            subImageGrey.convertTo(zeroMeanSubImage, CV_32F, 1, -mean.get(0));
+        }
+        this.norm = norm(zeroMeanSubImage, NORM_L2);
+    }
+
+    /**
+     * The flat windows score 0, see WindowStatistics for the subimages that cannot match them
+     *
+     * @return true if the subimage is large enough for the transforms to pay off and contrasted
+     */
+    static boolean isSuitable(Mat subImageGrey) {
+        return subImageGrey.cols() * subImageGrey.rows() >= MIN_SUBIMAGE_AREA &&
+                WindowStatistics.isSuitable(subImageGrey);
+    }
+
+    /**
+     * Fills the result with the score of every position of the frame
+     *
+     * @param product receives the product of the spectra, reused across frames by the calling thread
+     * @param correlation receives the inverse transform of the product, reused like the product
+     */
+    void computeScores(FrameContext frameContext, Mat result, Mat product, Mat correlation) {
+        Mat frameSpectrum = frameContext.getSpectrum();
+        Mat subImageSpectrum = getSpectrum(frameSpectrum.cols(), frameSpectrum.rows());
+        int resultCols = result.cols();
+        int resultRows = result.rows();
+
+        // Only the rows of the valid positions are needed from the inverse transform
+        mulSpectrums(frameSpectrum, subImageSpectrum, product, 0, true);
+        idft(product, correlation, DFT_SCALE | DFT_REAL_OUTPUT, resultRows);
+
+        FloatBuffer correlations = correlation.createBuffer();
+        int correlationStep = (int) correlation.step1();
+        Mat integral = frameContext.getIntegral();
+        DoubleBuffer sums = integral.createBuffer();
+        DoubleBuffer squares = frameContext.getSquaredIntegral().createBuffer();
+        int sumStep = (int) integral.step1();
+        FloatBuffer scores = result.createBuffer();
+        int scoreStep = (int) result.step1();
+
+        double area = (double) width * height;
+        // The flat windows score 0
+        double minVariance = WindowStatistics.MIN_PIXEL_VARIANCE * area;
+        for (int y = 0; y < resultRows; y++) {
+            for (int x = 0; x < resultCols; x++) {
+                int top = y * sumStep + x;
+                int bottom = (y + height) * sumStep + x;
+                double sum = sums.get(bottom + width) - sums.get(top + width) - sums.get(bottom) + sums.get(top);
+                double square = squares.get(bottom + width) - squares.get(top + width) -
+                        squares.get(bottom) + squares.get(top);
+                // The variance of the window times its area
+                double variance = square - sum * sum / area;
+                float score = 0;
+                if (variance >= minVariance) {
+                    score = (float) (correlations.get(y * correlationStep + x) / (norm * Math.sqrt(variance)));
+                }
+                scores.put(y * scoreStep + x, score);
+            }
+        }
+    }
+
+    /**
+     * @return the spectrum of the subimage, padded to the size of the frame spectrum
+     */
+    private synchronized Mat getSpectrum(int cols, int rows) {
+        if (spectrum != null && spectrum.cols() == cols && spectrum.rows() == rows) {
+            return spectrum;
+        }
+        if (spectrum != null) {
+            spectrum.release();
+        }
+        spectrum = new Mat();
+        try (Scalar zero = Scalar.all(0);
+             Mat padded = new Mat(rows, cols, CV_32F, zero);
+             Rect subImageArea = new Rect(0, 0, width, height);
+             Mat paddedSubImage = new Mat(padded, subImageArea)) {
+            zeroMeanSubImage.copyTo(paddedSubImage);
+            dft(padded, spectrum, 0, height);
+        }
+        return spectrum;
+    }
+
+    void release() {
+        zeroMeanSubImage.release();
+        synchronized (this) {
+            if (spectrum != null) {
+                spectrum.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package tdl.anonymize.image;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+import static org.bytedeco.javacpp.opencv_core.CV_8UC3;
+
+/**
+ * The subimages compiled into a single binary file, so a run does not decode and prepare every image again.
+ *
+ * For each subimage the bundle holds its name, its fingerprint, the BGR pixels, the blurred replacement and the
+ * grey pixels of every pyramid level. The bundle is memory mapped when read: the Mats of the maskers point into the
+ * mapping, no image is decoded, converted, blurred or downscaled and the fingerprints are not hashed again.
+ *
+ * All the numbers are big endian:
+ * <pre>
+ * magic "TDLB", version, count
+ * per subimage: name, fingerprint, width, height, levels,
+ *               width * height * 3 BGR bytes, width * height * 3 blurred BGR bytes,
+ *               per level: cols, rows, cols * rows grey bytes
+ * </pre>
+ * The strings are an int length followed by UTF-8 bytes.
+ */
+public class TemplateBundle {
+    private static final int MAGIC = 0x54444C42;
+    private static final int VERSION = 1;
+
+    private TemplateBundle() {
+    }
+
+    public static void write(List<ImageMasker> maskers, Path bundle) throws IOException {
+        Path temporary = Files.createTempFile(bundle.toAbsolutePath().getParent(), bundle.getFileName() + ".", ".tmp");
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temporary)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(maskers.size());
+                for (ImageMasker masker : maskers) {
+                    writeMasker(output, masker);
+                }
+            }
+            Files.move(temporary, bundle, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * @return the maskers of the bundle, their Mats point into the mapped file
+     */
+    public static List<ImageMasker> read(Path bundle, double matchingThreshold) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(bundle, StandardOpenOption.READ)) {
+            // Private so that nothing written by mistake to a Mat can reach the file
+            data = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+        }
+
+        if (data.getInt() != MAGIC) {
+            throw new IOException(bundle + " is not a template bundle");
+        }
+        int version = data.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported template bundle version " + version + " in " + bundle);
+        }
+
+        int count = data.getInt();
+        List<ImageMasker> maskers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readString(data);
+            String fingerprint = readString(data);
+            int width = data.getInt();
+            int height = data.getInt();
+            int levelCount = data.getInt();
+            Mat subImage = mapMat(data, height, width, CV_8UC3);
+            Mat blurredSubImage = mapMat(data, height, width, CV_8UC3);
+            List<Mat> greyLevels = new ArrayList<>(levelCount);
+            for (int level = 0; level < levelCount; level++) {
+                int cols = data.getInt();
+                int rows = data.getInt();
+                greyLevels.add(mapMat(data, rows, cols, CV_8UC1));
+            }
+
+            ImageMasker masker = new ImageMasker(name, subImage, greyLevels, blurredSubImage, fingerprint,
+                    matchingThreshold);
+            masker.setMappedPixels(data);
+            maskers.add(masker);
+        }
+        return maskers;
+    }
+
+    private static void writeMasker(DataOutputStream output, ImageMasker masker) throws IOException {
+        Mat subImage = masker.getSubImage();
+        writeString(output, masker.getName());
+        writeString(output, masker.getFingerprint());
+        output.writeInt(subImage.cols());
+        output.writeInt(subImage.rows());
+
+        // Every level a pyramid search can use
+        output.writeInt(ImageMasker.MAX_PYRAMID_LEVELS + 1);
+        writePixels(output, subImage);
+        writePixels(output, masker.getBlurredSubImage());
+        for (int level = 0; level <= ImageMasker.MAX_PYRAMID_LEVELS; level++) {
+            Mat greyLevel = masker.getSubImageGreyLevel(level);
+            output.writeInt(greyLevel.cols());
+            output.writeInt(greyLevel.rows());
+            writePixels(output, greyLevel);
+        }
+    }
+
+    private static void writePixels(DataOutputStream output, Mat mat) throws IOException {
+        byte[] row = new byte[(int) (mat.cols() * mat.elemSize())];
+        long step = mat.step();
+        BytePointer data = mat.data();
+        for (int y = 0; y < mat.rows(); y++) {
+            data.position(y * step).get(row, 0, row.length);
+            output.write(row);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer data) {
+        byte[] bytes = new byte[data.getInt()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a Mat over the next pixels of the mapping, the position moves past them
+     */
+    private static Mat mapMat(ByteBuffer data, int rows, int cols, int type) {
+        int channels = type == CV_8UC3 ? 3 : 1;
+        int size = rows * cols * channels;
+        ByteBuffer pixels = data.duplicate();
+        pixels.limit(pixels.position() + size);
+        data.position(data.position() + size);
+        return new Mat(rows, cols, type, new BytePointer(pixels.slice()));
+    }
+}
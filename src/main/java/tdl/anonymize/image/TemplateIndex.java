@@ -0,0 +1,250 @@
+package tdl.anonymize.image;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Point;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds where each of many subimages may be in a frame with a single pass over the frame, whatever the number of
+ * subimages.
+ *
+ * Each subimage is represented by an anchor, its most contrasted patch of 8 cells by 2 cells of 4x4 pixels.
+ * The signature of a patch has one bit per cell, set when the cell is brighter than the patch, so it does not
+ * change with the brightness or the contrast. The frame is reduced to the means of its 4x4 blocks once and the
+ * signature of the patch at every block is looked up in the index. As the blocks are 4 pixels apart, each subimage
+ * is indexed under the signatures of its anchor moved by 0 to 3 pixels in each direction: whatever its position,
+ * one of them falls on the blocks of the frame.
+ *
+ * The cells too close to the mean of their patch could flip with the compression of the frame, both values of
+ * their bit are indexed. The subimages too small for an anchor, or with too many such cells, are not indexed and
+ * must be searched in the whole frame. The candidates are not matches, they must be verified by a correlation.
+ */
+public class TemplateIndex {
+    /**
+     * How far, in pixels, a match may be from its candidate after the compression of the frame
+     */
+    public static final int CANDIDATE_RADIUS = 1;
+    private static final int CELL_SIZE = 4;
+    private static final int CELL_COLS = 8;
+    private static final int CELL_ROWS = 2;
+    private static final int CELL_COUNT = CELL_COLS * CELL_ROWS;
+    private static final int PATCH_WIDTH = CELL_SIZE * CELL_COLS;
+    private static final int PATCH_HEIGHT = CELL_SIZE * CELL_ROWS;
+    private static final double MARGIN = 4;
+    private static final int MAX_AMBIGUOUS_CELLS = 4;
+    /**
+     * Above this number of candidates in a frame, searching the whole frame is cheaper
+     */
+    private static final int MAX_CANDIDATES = 256;
+
+    private final List<ImageMasker> indexedMaskers;
+    private final int[][] entriesBySignature;
+
+    private TemplateIndex(List<ImageMasker> indexedMaskers, int[][] entriesBySignature) {
+        this.indexedMaskers = indexedMaskers;
+        this.entriesBySignature = entriesBySignature;
+    }
+
+    public static TemplateIndex of(List<ImageMasker> maskers) {
+        List<ImageMasker> indexedMaskers = new ArrayList<>();
+        Map<Integer, List<int[]>> entries = new HashMap<>();
+        for (ImageMasker masker : maskers) {
+            Mat grey = masker.getSubImageGreyLevel(0);
+            int width = grey.cols();
+            int height = grey.rows();
+            if (width < PATCH_WIDTH + CELL_SIZE - 1 || height < PATCH_HEIGHT + CELL_SIZE - 1) {
+                continue;
+            }
+            byte[] pixels = new byte[width * height];
+            BytePointer data = grey.data();
+            for (int y = 0; y < height; y++) {
+                data.position(y * grey.step()).get(pixels, y * width, width);
+            }
+
+            List<int[]> maskerEntries = indexAnchor(pixels, width, height, indexedMaskers.size());
+            if (maskerEntries == null) {
+                continue;
+            }
+            indexedMaskers.add(masker);
+            for (int[] entry : maskerEntries) {
+                entries.computeIfAbsent(entry[0], (signature) -> new ArrayList<>()).add(entry);
+            }
+        }
+
+        // Flattened as masker index, anchor x, anchor y triples
+        int[][] entriesBySignature = new int[1 << CELL_COUNT][];
+        entries.forEach((signature, signatureEntries) -> {
+            int[] flat = new int[signatureEntries.size() * 3];
+            for (int i = 0; i < signatureEntries.size(); i++) {
+                System.arraycopy(signatureEntries.get(i), 1, flat, i * 3, 3);
+            }
+            entriesBySignature[signature] = flat;
+        });
+        return new TemplateIndex(indexedMaskers, entriesBySignature);
+    }
+
+    public List<ImageMasker> getIndexedMaskers() {
+        return Collections.unmodifiableList(indexedMaskers);
+    }
+
+    /**
+     * @return for each indexed subimage with few enough candidates, the top left corners where it may be,
+     * owned by the caller. The other subimages must be searched in the whole frame.
+     */
+    public Map<ImageMasker, List<Point>> findCandidates(FrameContext frameContext) {
+        List<List<Point>> candidates = new ArrayList<>(indexedMaskers.size());
+        for (int i = 0; i < indexedMaskers.size(); i++) {
+            candidates.add(new ArrayList<>());
+        }
+        // The subimages with more than MAX_CANDIDATES candidates, the list stops growing at MAX_CANDIDATES
+        boolean[] overflowed = new boolean[indexedMaskers.size()];
+
+        Mat blockMeans = frameContext.getBlockMeans(CELL_SIZE);
+        ByteBuffer means = blockMeans.createBuffer();
+        int step = (int) blockMeans.step();
+        int[] cells = new int[CELL_COUNT];
+        for (int row = 0; row + CELL_ROWS <= blockMeans.rows(); row++) {
+            for (int col = 0; col + CELL_COLS <= blockMeans.cols(); col++) {
+                int sum = 0;
+                int min = Integer.MAX_VALUE;
+                int max = Integer.MIN_VALUE;
+                for (int cell = 0; cell < CELL_COUNT; cell++) {
+                    int value = means.get((row + cell / CELL_COLS) * step + col + cell % CELL_COLS) & 0xFF;
+                    cells[cell] = value;
+                    sum += value;
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                // The anchors are contrasted, a flat patch cannot be one
+                if (max - min < MARGIN) {
+                    continue;
+                }
+
+                int signature = 0;
+                for (int cell = 0; cell < CELL_COUNT; cell++) {
+                    if (cells[cell] * CELL_COUNT > sum) {
+                        signature |= 1 << cell;
+                    }
+                }
+                int[] entries = entriesBySignature[signature];
+                if (entries == null) {
+                    continue;
+                }
+                for (int e = 0; e < entries.length; e += 3) {
+                    ImageMasker masker = indexedMaskers.get(entries[e]);
+                    int x = col * CELL_SIZE - entries[e + 1];
+                    int y = row * CELL_SIZE - entries[e + 2];
+                    List<Point> maskerCandidates = candidates.get(entries[e]);
+                    if (x < 0 || y < 0 || x + masker.getSubImageWidth() > frameContext.getWidth() ||
+                            y + masker.getSubImageHeight() > frameContext.getHeight()) {
+                        continue;
+                    }
+                    if (maskerCandidates.size() < MAX_CANDIDATES) {
+                        maskerCandidates.add(new Point(x, y));
+                    } else {
+                        overflowed[entries[e]] = true;
+                    }
+                }
+            }
+        }
+
+        Map<ImageMasker, List<Point>> candidatesByMasker = new LinkedHashMap<>();
+        for (int i = 0; i < indexedMaskers.size(); i++) {
+            List<Point> maskerCandidates = candidates.get(i);
+            if (overflowed[i]) {
+                maskerCandidates.forEach(Point::close);
+            } else {
+                candidatesByMasker.put(indexedMaskers.get(i), maskerCandidates);
+            }
+        }
+        return candidatesByMasker;
+    }
+
+    /**
+     * @return signature, masker index, anchor x, anchor y of every shift of the anchor, null if the subimage
+     * cannot be indexed
+     */
+    private static List<int[]> indexAnchor(byte[] pixels, int width, int height, int maskerIndex) {
+        // The anchor must stay inside the subimage when moved by up to CELL_SIZE - 1 pixels
+        int bestX = -1;
+        int bestY = -1;
+        double bestContrast = -1;
+        for (int y = 0; y + PATCH_HEIGHT + CELL_SIZE - 1 <= height; y++) {
+            for (int x = 0; x + PATCH_WIDTH + CELL_SIZE - 1 <= width; x += CELL_SIZE) {
+                double[] cells = cellMeans(pixels, width, x, y);
+                double mean = mean(cells);
+                double contrast = 0;
+                for (double cell : cells) {
+                    contrast += Math.min(Math.abs(cell - mean), 4 * MARGIN);
+                }
+                if (contrast > bestContrast) {
+                    bestContrast = contrast;
+                    bestX = x;
+                    bestY = y;
+                }
+            }
+        }
+
+        List<int[]> entries = new ArrayList<>();
+        for (int dy = 0; dy < CELL_SIZE; dy++) {
+            for (int dx = 0; dx < CELL_SIZE; dx++) {
+                double[] cells = cellMeans(pixels, width, bestX + dx, bestY + dy);
+                double mean = mean(cells);
+                int signature = 0;
+                List<Integer> ambiguousCells = new ArrayList<>();
+                for (int cell = 0; cell < CELL_COUNT; cell++) {
+                    if (Math.abs(cells[cell] - mean) <= MARGIN) {
+                        ambiguousCells.add(cell);
+                    } else if (cells[cell] > mean) {
+                        signature |= 1 << cell;
+                    }
+                }
+                if (ambiguousCells.size() > MAX_AMBIGUOUS_CELLS || ambiguousCells.size() == CELL_COUNT) {
+                    return null;
+                }
+                for (int variant = 0; variant < (1 << ambiguousCells.size()); variant++) {
+                    int variantSignature = signature;
+                    for (int a = 0; a < ambiguousCells.size(); a++) {
+                        if ((variant & (1 << a)) != 0) {
+                            variantSignature |= 1 << ambiguousCells.get(a);
+                        }
+                    }
+                    entries.add(new int[]{variantSignature, maskerIndex, bestX + dx, bestY + dy});
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static double[] cellMeans(byte[] pixels, int width, int left, int top) {
+        double[] cells = new double[CELL_COUNT];
+        for (int cell = 0; cell < CELL_COUNT; cell++) {
+            int cellLeft = left + (cell % CELL_COLS) * CELL_SIZE;
+            int cellTop = top + (cell / CELL_COLS) * CELL_SIZE;
+            int sum = 0;
+            for (int y = cellTop; y < cellTop + CELL_SIZE; y++) {
+                for (int x = cellLeft; x < cellLeft + CELL_SIZE; x++) {
+                    sum += pixels[y * width + x] & 0xFF;
+                }
+            }
+            cells[cell] = sum / (double) (CELL_SIZE * CELL_SIZE);
+        }
+        return cells;
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+}
@@ -0,0 +1,192 @@
+package tdl.anonymize.image;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hash for each square tile of a grey frame.
+ * Comparing the hashes of two consecutive frames tells which parts of the screen have changed.
+ */
+public class TileHashes {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int tileSize;
+    private final int width;
+    private final int height;
+    private final int cols;
+    private final int rows;
+    private final long[] hashes;
+
+    private TileHashes(int tileSize, int width, int height) {
+        this.tileSize = tileSize;
+        this.width = width;
+        this.height = height;
+        this.cols = (width + tileSize - 1) / tileSize;
+        this.rows = (height + tileSize - 1) / tileSize;
+        this.hashes = new long[cols * rows];
+    }
+
+    public static TileHashes of(Mat grey, int tileSize) {
+        TileHashes tileHashes = new TileHashes(tileSize, grey.cols(), grey.rows());
+        long[] hashes = tileHashes.hashes;
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = FNV_OFFSET_BASIS;
+        }
+
+        byte[] row = new byte[grey.cols()];
+        BytePointer data = grey.data();
+        // A CV_8UC1 row step in elements is also its step in bytes
+        long step = grey.step1();
+        for (int y = 0; y < grey.rows(); y++) {
+            data.position(y * step).get(row, 0, row.length);
+            int tileRowOffset = (y / tileSize) * tileHashes.cols;
+            for (int x = 0; x < row.length; x++) {
+                int tile = tileRowOffset + x / tileSize;
+                hashes[tile] = (hashes[tile] ^ (row[x] & 0xff)) * FNV_PRIME;
+            }
+        }
+        return tileHashes;
+    }
+
+    /**
+     * Changes known from another source than the pixels, such as the motion vectors of the encoder
+     *
+     * @param changed for each tile, row by row, true if the tile has changed
+     */
+    public static Changes changes(int width, int height, int tileSize, boolean[] changed) {
+        TileHashes tileHashes = new TileHashes(tileSize, width, height);
+        if (changed.length != tileHashes.hashes.length) {
+            throw new IllegalArgumentException("Expected " + tileHashes.hashes.length + " tiles, got " + changed.length);
+        }
+        int changedCount = 0;
+        for (boolean tileChanged : changed) {
+            if (tileChanged) {
+                changedCount++;
+            }
+        }
+        return tileHashes.new Changes(changed, changedCount);
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTileCount() {
+        return hashes.length;
+    }
+
+    /**
+     * @return the tiles that differ from the previous frame, or null if the frames cannot be compared
+     */
+    public Changes changedSince(TileHashes previous) {
+        return changedSince(previous, null);
+    }
+
+    /**
+     * The tiles known to have changed, e.g. from the motion vectors, are not compared. Every other tile is compared,
+     * a tile that another source considers unchanged is only unchanged if its pixels are.
+     *
+     * @param knownChanges the tiles known to have changed, on the same grid, null to compare every tile
+     * @return the tiles that differ from the previous frame or are known to have changed, or null if the frames
+     * cannot be compared
+     */
+    public Changes changedSince(TileHashes previous, Changes knownChanges) {
+        if (previous == null || previous.tileSize != tileSize ||
+                previous.width != width || previous.height != height) {
+            return null;
+        }
+        if (knownChanges != null && knownChanges.changed.length != hashes.length) {
+            throw new IllegalArgumentException("Expected " + hashes.length + " tiles, got " +
+                    knownChanges.changed.length);
+        }
+
+        boolean[] changed = new boolean[hashes.length];
+        int changedCount = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if ((knownChanges != null && knownChanges.changed[i]) || hashes[i] != previous.hashes[i]) {
+                changed[i] = true;
+                changedCount++;
+            }
+        }
+        return new Changes(changed, changedCount);
+    }
+
+    /**
+     * The tiles changed since the previous frame
+     */
+    public class Changes {
+        private final boolean[] changed;
+        private final int changedCount;
+
+        private Changes(boolean[] changed, int changedCount) {
+            this.changed = changed;
+            this.changedCount = changedCount;
+        }
+
+        public int getChangedCount() {
+            return changedCount;
+        }
+
+        public int getUnchangedCount() {
+            return changed.length - changedCount;
+        }
+
+        /**
+         * @return true if any pixel of the area lies in a changed tile
+         */
+        public boolean intersects(int x, int y, int areaWidth, int areaHeight) {
+            int firstCol = Math.max(0, x / tileSize);
+            int lastCol = Math.min(cols - 1, (x + areaWidth - 1) / tileSize);
+            int firstRow = Math.max(0, y / tileSize);
+            int lastRow = Math.min(rows - 1, (y + areaHeight - 1) / tileSize);
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int col = firstCol; col <= lastCol; col++) {
+                    if (changed[row * cols + col]) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * A match position needs to be searched if the subimage placed there overlaps a changed tile.
+         * The positions are grouped by tile and merged into runs along each row of tiles.
+         *
+         * @return the areas of the match result, in match positions, that need to be searched
+         */
+        public List<Rect> searchAreas(int subImageWidth, int subImageHeight) {
+            int resultCols = width - subImageWidth + 1;
+            int resultRows = height - subImageHeight + 1;
+            List<Rect> areas = new ArrayList<>();
+            for (int top = 0; top < resultRows; top += tileSize) {
+                int bottom = Math.min(top + tileSize, resultRows);
+                int left = 0;
+                while (left < resultCols) {
+                    int right = Math.min(left + tileSize, resultCols);
+                    if (!intersects(left, top, right - left + subImageWidth - 1, bottom - top + subImageHeight - 1)) {
+                        left = right;
+                        continue;
+                    }
+
+                    int runStart = left;
+                    while (left < resultCols) {
+                        right = Math.min(left + tileSize, resultCols);
+                        if (!intersects(left, top, right - left + subImageWidth - 1,
+                                bottom - top + subImageHeight - 1)) {
+                            break;
+                        }
+                        left = right;
+                    }
+                    areas.add(new Rect(runStart, top, left - runStart, bottom - top));
+                }
+            }
+            return areas;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package tdl.anonymize.image;
+
+import org.bytedeco.javacpp.indexer.DoubleIndexer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.javacpp.opencv_core.meanStdDev;
+
+/**
+ * Rejects the positions of a frame where no subimage can match from the statistics of the windows alone, read
+ * from the integral images of the FrameContext.
+ *
+ * A window whose variance is below MIN_PIXEL_VARIANCE per pixel is flat. The normalized correlation does not depend
+ * on the contrast, a flat window can still match a subimage of little contrast, so only the subimages with a
+ * variance of at least MIN_SUBIMAGE_PIXEL_VARIANCE per pixel are filtered: a flat window would have lost most of
+ * their contrast to the compression. The positions are grouped in tiles. The pixels covered by all the windows of a
+ * tile are checked at once: the variance of a window times its area is at most the variance of any region holding
+ * it times the area of that region, so when the whole region is flat enough every window of the tile is flat and the
+ * tile is rejected with eight integral lookups.
+ */
+class WindowStatistics {
+    /**
+     * The windows with a lower variance per pixel are flat
+     */
+    static final double MIN_PIXEL_VARIANCE = 1.0;
+    /**
+     * The subimages with a lower variance per pixel may match a flat window
+     */
+    static final double MIN_SUBIMAGE_PIXEL_VARIANCE = 16 * MIN_PIXEL_VARIANCE;
+    private static final int TILE_SIZE = 32;
+
+    private WindowStatistics() {
+    }
+
+    /**
+     * @return true if the subimage has too much contrast to match a flat window
+     */
+    static boolean isSuitable(Mat subImageGrey) {
+        try (Mat mean = new Mat(); Mat stdDev = new Mat()) {
+            meanStdDev(subImageGrey, mean, stdDev);
+            DoubleIndexer stdDevIndexer = stdDev.createIndexer();
+            double deviation = stdDevIndexer.get(0);
+            stdDevIndexer.release();
+            return deviation * deviation >= MIN_SUBIMAGE_PIXEL_VARIANCE;
+        }
+    }
+
+    /**
+     * @return the areas of the result that may hold a match, merged along the rows of tiles,
+     * or null if no position could be rejected
+     */
+    static List<Rect> findCandidateAreas(FrameContext frameContext, int width, int height,
+                                         int resultCols, int resultRows) {
+        Mat integral = frameContext.getIntegral();
+        DoubleBuffer sums = integral.createBuffer();
+        DoubleBuffer squares = frameContext.getSquaredIntegral().createBuffer();
+        int step = (int) integral.step1();
+        double minWindowVariance = MIN_PIXEL_VARIANCE * width * height;
+
+        List<Rect> areas = new ArrayList<>();
+        boolean rejected = false;
+        for (int tileTop = 0; tileTop < resultRows; tileTop += TILE_SIZE) {
+            int tileBottom = Math.min(resultRows, tileTop + TILE_SIZE);
+            int runStart = -1;
+            for (int tileLeft = 0; tileLeft < resultCols; tileLeft += TILE_SIZE) {
+                int tileRight = Math.min(resultCols, tileLeft + TILE_SIZE);
+
+                // The pixels covered by the windows of the tile
+                int bottom = tileBottom + height - 1;
+                int right = tileRight + width - 1;
+                double area = (double) (right - tileLeft) * (bottom - tileTop);
+                int topLeft = tileTop * step + tileLeft;
+                int topRight = tileTop * step + right;
+                int bottomLeft = bottom * step + tileLeft;
+                int bottomRight = bottom * step + right;
+                double sum = sums.get(bottomRight) - sums.get(topRight) - sums.get(bottomLeft) + sums.get(topLeft);
+                double square = squares.get(bottomRight) - squares.get(topRight) -
+                        squares.get(bottomLeft) + squares.get(topLeft);
+                boolean flat = square - sum * sum / area < minWindowVariance;
+
+                if (flat) {
+                    rejected = true;
+                    if (runStart >= 0) {
+                        areas.add(new Rect(runStart, tileTop, tileLeft - runStart, tileBottom - tileTop));
+                        runStart = -1;
+                    }
+                } else if (runStart < 0) {
+                    runStart = tileLeft;
+                }
+            }
+            if (runStart >= 0) {
+                areas.add(new Rect(runStart, tileTop, resultCols - runStart, tileBottom - tileTop));
+            }
+        }
+
+        if (!rejected) {
+            areas.forEach(Rect::close);
+            return null;
+        }
+        return areas;
+    }
+}
@@ -0,0 +1,54 @@
+package tdl.anonymize.image;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+
+/**
+ * Views over the three planes of an I420 (YUV420P) image stored as a single channel Mat of height * 3 / 2 rows.
+ * The views share the memory of the image, which must outlive them. The chroma planes are rounded up as in FFmpeg,
+ * but the height of an odd sized image cannot be told from the rows of the Mat, the frames must have an even size.
+ * The planes must not be padded: each row of the image, and so of each plane, follows the one before.
+ */
+class YuvPlanes implements AutoCloseable {
+    final Mat y;
+    final Mat u;
+    final Mat v;
+
+    private YuvPlanes(Mat y, Mat u, Mat v) {
+        this.y = y;
+        this.u = u;
+        this.v = v;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the image is not a continuous single channel Mat of the size of the planes
+     */
+    static YuvPlanes of(Mat i420, int width, int height) {
+        if (i420.type() != CV_8UC1 || !i420.isContinuous() || i420.cols() != width ||
+                i420.rows() != height * 3 / 2 || height % 2 != 0) {
+            throw new IllegalArgumentException("Expected a continuous I420 image of " + width + "x" + height +
+                    ", got " + i420.cols() + "x" + i420.rows());
+        }
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        long lumaSize = (long) width * height;
+        long chromaSize = (long) chromaWidth * chromaHeight;
+
+        BytePointer data = i420.data();
+        Mat y = new Mat(height, width, CV_8UC1, new BytePointer(data).position(0), width);
+        Mat u = new Mat(chromaHeight, chromaWidth, CV_8UC1,
+                new BytePointer(data).position(lumaSize), chromaWidth);
+        Mat v = new Mat(chromaHeight, chromaWidth, CV_8UC1,
+                new BytePointer(data).position(lumaSize + chromaSize), chromaWidth);
+        return new YuvPlanes(y, u, v);
+    }
+
+    @Override
+    public void close() {
+        y.close();
+        u.close();
+        v.close();
+    }
+}
@@ -0,0 +1,115 @@
+package tdl.anonymize.video;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks the read ahead step of the next block from how often the matches changed between read ahead frames.
+ *
+ * The step grows by a quarter after each block where the read ahead frame matched the same points as the one
+ * before, and is halved as soon as they differ: long static stretches are matched less often and the masks
+ * follow quickly once the screen starts moving. The step always stays between the bounds.
+ *
+ * The step of a block depends on the matches of every block read before it, as in a sequential run. When the blocks
+ * are matched in a pipeline, the decoder waits for the read ahead frame of the last block to be matched before
+ * reading the next one, the other frames of the blocks are still masked and encoded concurrently. The steps, and so
+ * the output, are the same as in a sequential run whatever the speed of the workers.
+ *
+ * Thread safe, the decoder reads the step while the workers report the matches, in any order.
+ */
+@Slf4j
+class AdaptiveStep {
+    private final int minStep;
+    private final int maxStep;
+    private final Map<Long, Boolean> pendingBlocks;
+    private int step;
+    private long blocks;
+    private long observedBlocks;
+    private boolean cancelled;
+    private long frames;
+    private long changedBlocks;
+    private int smallestStep;
+    private int largestStep;
+
+    AdaptiveStep(int minStep, int maxStep, int initialStep) {
+        this.minStep = Math.max(1, minStep);
+        this.maxStep = Math.max(this.minStep, maxStep);
+        this.pendingBlocks = new HashMap<>();
+        this.step = clamp(initialStep);
+        this.smallestStep = step;
+        this.largestStep = step;
+    }
+
+    int getMaxStep() {
+        return maxStep;
+    }
+
+    /**
+     * Waits for the matches of all the blocks read before
+     *
+     * @return the step of the next block read
+     */
+    synchronized int nextStep() throws InterruptedException {
+        while (!cancelled && observedBlocks < blocks) {
+            wait();
+        }
+        blocks++;
+        return step;
+    }
+
+    /**
+     * @param frameCount the number of frames actually read in the block, less than the step at the end of the video
+     */
+    synchronized void countFrames(int frameCount) {
+        frames += frameCount;
+    }
+
+    /**
+     * @param blockIndex the index of the block, in the order the blocks were read
+     * @param changed true if the read ahead frame did not match the same points as the read ahead frame before
+     */
+    synchronized void observe(long blockIndex, boolean changed) {
+        pendingBlocks.put(blockIndex, changed);
+        Boolean nextChanged;
+        while ((nextChanged = pendingBlocks.remove(observedBlocks)) != null) {
+            adapt(nextChanged);
+            observedBlocks++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stops waiting for the matches, which will not come when the matching failed
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    private void adapt(boolean changed) {
+        int previousStep = step;
+        if (changed) {
+            changedBlocks++;
+            step = clamp(step / 2);
+        } else {
+            step = clamp(step + Math.max(1, step / 4));
+        }
+        smallestStep = Math.min(smallestStep, step);
+        largestStep = Math.max(largestStep, step);
+        if (step != previousStep) {
+            log.debug("Read ahead step {} -> {}", previousStep, step);
+        }
+    }
+
+    synchronized void logSummary() {
+        log.info("Adaptive read ahead step: {} blocks, average {}, between {} and {}, matches changed in {} blocks",
+                blocks, blocks > 0 ? String.format("%.1f", (double) frames / blocks) : "-",
+                smallestStep, largestStep, changedBlocks);
+    }
+
+    private int clamp(int value) {
+        return Math.max(minStep, Math.min(maxStep, value));
+    }
+}
@@ -0,0 +1,152 @@
+package tdl.anonymize.video;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The masks detected for one subimage in one video, stored as timeline files in a directory.
+ *
+ * The entries are looked up by a key derived from the content of the video, the pixels of the subimage, the
+ * threshold and the detection settings, so renaming or moving the files does not invalidate them.
+ * The least recently used entries are deleted when the directory grows past its size limit. Entries are written
+ * to a temporary file and moved in place, several runs can share the directory.
+ */
+@Slf4j
+class DetectionCache {
+    private static final String ENTRY_SUFFIX = ".jsonl";
+    private static final int HASH_BUFFER_SIZE = 1 << 20;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    DetectionCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the timeline stored under the key, null if there is none
+     */
+    MaskTimeline get(String key) throws IOException {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        try {
+            MaskTimeline timeline = MaskTimelineFile.read(entry);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return timeline;
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    void put(String key, MaskTimeline timeline) throws IOException {
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        try {
+            MaskTimelineFile.write(timeline, temporary);
+            Files.move(temporary, directory.resolve(key + ENTRY_SUFFIX),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        evict();
+    }
+
+    private void evict() throws IOException {
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(directory)) {
+            entries = files.filter(path -> path.getFileName().toString().endsWith(ENTRY_SUFFIX))
+                    .collect(Collectors.toList());
+        }
+
+        List<Entry> existing = new ArrayList<>();
+        long totalBytes = 0;
+        for (Path path : entries) {
+            try {
+                Entry entry = new Entry(path, Files.size(path), Files.getLastModifiedTime(path));
+                existing.add(entry);
+                totalBytes += entry.size;
+            } catch (NoSuchFileException ex) {
+                // Evicted by another run
+            }
+        }
+
+        existing.sort(Comparator.comparing(entry -> entry.lastUsed));
+        for (Entry entry : existing) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            Files.deleteIfExists(entry.path);
+            totalBytes -= entry.size;
+            log.debug("Evicted {} from the detection cache", entry.path.getFileName());
+        }
+    }
+
+    /**
+     * @return a hex SHA-256 of the parts, each part ends with a new line
+     */
+    static String key(String... parts) {
+        MessageDigest digest = sha256();
+        for (String part : parts) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return a hex SHA-256 of the content of the file
+     */
+    static String hashFile(Path path) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte value : bytes) {
+            hex.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static class Entry {
+        private final Path path;
+        private final long size;
+        private final FileTime lastUsed;
+
+        Entry(Path path, long size, FileTime lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
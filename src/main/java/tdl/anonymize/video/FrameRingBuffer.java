@@ -0,0 +1,80 @@
+package tdl.anonymize.video;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * Fixed pool of decoded frames shared between the decoder and the encoder.
+ *
+ * The decoder copies each grabbed frame into the next free slot, the encoder recycles the slots in the same
+ * order once the frames have been recorded. When all the slots are taken the decoder waits, so the memory used by
+ * the decoded frames never exceeds the capacity of the buffer.
+ */
+class FrameRingBuffer implements AutoCloseable {
+    private final Mat[] slots;
+    private int head;
+    private int size;
+    private boolean aborted;
+
+    FrameRingBuffer(int capacity) {
+        this.slots = new Mat[Math.max(1, capacity)];
+        this.head = 0;
+        this.size = 0;
+        this.aborted = false;
+    }
+
+    /**
+     * Copies the frame into the next free slot, waiting for a slot to be recycled if the buffer is full.
+     *
+     * @param frame the frame to copy, it can be reused by the caller afterwards
+     * @return the slot now holding the frame
+     * @throws InterruptedException if interrupted while waiting for a free slot
+     */
+    synchronized Mat put(Mat frame) throws InterruptedException {
+        while (size == slots.length && !aborted) {
+            wait();
+        }
+        if (aborted) {
+            throw new IllegalStateException("The frame buffer is no longer consumed");
+        }
+
+        int tail = (head + size) % slots.length;
+        if (slots[tail] == null) {
+            slots[tail] = new Mat();
+        }
+        frame.copyTo(slots[tail]);
+        size += 1;
+        return slots[tail];
+    }
+
+    /**
+     * Frees the oldest slot. The slots must be recycled in the order they have been handed out.
+     *
+     * @param frame the frame returned by the matching put
+     */
+    synchronized void recycle(Mat frame) {
+        if (size == 0 || slots[head] != frame) {
+            throw new IllegalStateException("Frames must be recycled in the order they have been decoded");
+        }
+        head = (head + 1) % slots.length;
+        size -= 1;
+        notifyAll();
+    }
+
+    /**
+     * Wakes up the decoder if the consumer stopped early
+     */
+    synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) {
+                slots[i].release();
+                slots[i] = null;
+            }
+        }
+    }
+}
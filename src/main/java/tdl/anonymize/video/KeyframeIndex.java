@@ -0,0 +1,161 @@
+package tdl.anonymize.video;
+
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FrameGrabber;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.bytedeco.javacpp.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.javacpp.avcodec.av_packet_unref;
+import static org.bytedeco.javacpp.avutil.AV_NOPTS_VALUE;
+
+/**
+ * The position of the keyframes of a video, read from the packets without decoding them.
+ *
+ * The frames are counted in decoding order. For closed GOPs, which is what x264 and the screen recorders produce,
+ * a GOP holds the same frames in decoding and in presentation order. A GOP is open when a frame decoded after its
+ * keyframe is presented before it, such a frame refers to the previous GOP and the GOPs cannot be cut apart.
+ */
+class KeyframeIndex {
+    private final List<Integer> keyframes;
+    private final int totalFrames;
+    private final boolean openGops;
+
+    private KeyframeIndex(List<Integer> keyframes, int totalFrames, boolean openGops) {
+        this.keyframes = keyframes;
+        this.totalFrames = totalFrames;
+        this.openGops = openGops;
+    }
+
+    static KeyframeIndex scan(Path videoPath) throws FrameGrabber.Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(videoPath.toFile());
+        grabber.start();
+        try {
+            int videoStream = StreamCopy.findVideoStream(grabber.getFormatContext());
+            List<Integer> keyframes = new ArrayList<>();
+            int frameIndex = 0;
+            long keyframePts = AV_NOPTS_VALUE;
+            boolean openGops = false;
+            AVPacket packet;
+            while ((packet = grabber.grabPacket()) != null) {
+                if (packet.stream_index() == videoStream) {
+                    if ((packet.flags() & AV_PKT_FLAG_KEY) != 0) {
+                        keyframes.add(frameIndex);
+                        keyframePts = packet.pts();
+                    } else if (keyframePts != AV_NOPTS_VALUE && packet.pts() != AV_NOPTS_VALUE &&
+                            packet.pts() < keyframePts) {
+                        openGops = true;
+                    }
+                    frameIndex++;
+                }
+                av_packet_unref(packet);
+            }
+            return new KeyframeIndex(keyframes, frameIndex, openGops);
+        } finally {
+            grabber.close();
+        }
+    }
+
+    List<Integer> getKeyframes() {
+        return Collections.unmodifiableList(keyframes);
+    }
+
+    int getTotalFrames() {
+        return totalFrames;
+    }
+
+    /**
+     * @return true if a frame is presented before the keyframe it follows in decoding order
+     */
+    boolean hasOpenGops() {
+        return openGops;
+    }
+
+    /**
+     * Splits the video at the keyframes and merges the consecutive GOPs with the same state.
+     * Frames before the first keyframe cannot be decoded on their own, they join the first GOP.
+     *
+     * @return the runs of clean and dirty GOPs covering the whole video
+     */
+    List<Segment> segments(MaskTimeline timeline) {
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < keyframes.size(); i++) {
+            int start = i == 0 ? 0 : keyframes.get(i);
+            int end = i + 1 < keyframes.size() ? keyframes.get(i + 1) : totalFrames;
+            boolean dirty = timeline.hasMasks(start, end);
+
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last != null && last.dirty == dirty) {
+                segments.set(segments.size() - 1, new Segment(last.startFrame, end, dirty));
+            } else {
+                segments.add(new Segment(start, end, dirty));
+            }
+        }
+        if (segments.isEmpty() && totalFrames > 0) {
+            segments.add(new Segment(0, totalFrames, timeline.hasMasks(0, totalFrames)));
+        }
+        return segments;
+    }
+
+    /**
+     * Cuts the video at the keyframes closest after each multiple of totalFrames / count.
+     *
+     * @return at most count runs of GOPs of about the same length covering the whole video, all to be re-encoded
+     */
+    List<Segment> split(int count) {
+        List<Segment> segments = new ArrayList<>();
+        int start = 0;
+        for (int keyframe : keyframes) {
+            int targetStart = (int) ((long) totalFrames * (segments.size() + 1) / Math.max(1, count));
+            if (keyframe > start && keyframe >= targetStart && segments.size() + 1 < count) {
+                segments.add(new Segment(start, keyframe, true));
+                start = keyframe;
+            }
+        }
+        if (start < totalFrames) {
+            segments.add(new Segment(start, totalFrames, true));
+        }
+        return segments;
+    }
+
+    /**
+     * @param stride the minimum distance between two samples
+     * @return the keyframes at least stride frames apart, followed by the last frame of the video
+     */
+    List<Integer> sample(int stride) {
+        List<Integer> samples = new ArrayList<>();
+        samples.add(0);
+        for (int keyframe : keyframes) {
+            if (keyframe - samples.get(samples.size() - 1) >= stride) {
+                samples.add(keyframe);
+            }
+        }
+        if (totalFrames - 1 > samples.get(samples.size() - 1)) {
+            samples.add(totalFrames - 1);
+        }
+        return samples;
+    }
+
+    /**
+     * A run of whole GOPs, from startFrame (inclusive) to endFrame (exclusive)
+     */
+    static class Segment {
+        final int startFrame;
+        final int endFrame;
+        final boolean dirty;
+
+        Segment(int startFrame, int endFrame, boolean dirty) {
+            this.startFrame = startFrame;
+            this.endFrame = endFrame;
+            this.dirty = dirty;
+        }
+
+        int getFrameCount() {
+            return endFrame - startFrame;
+        }
+    }
+}
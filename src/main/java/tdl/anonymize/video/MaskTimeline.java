@@ -0,0 +1,126 @@
+package tdl.anonymize.video;
+
+import java.util.*;
+
+/**
+ * The areas masked in each frame of a video, identified by the index of the frame in presentation order, the
+ * order the frames are grabbed in.
+ * Frames without any mask are not stored.
+ */
+public class MaskTimeline {
+    private final TreeMap<Integer, List<Mask>> masksByFrame;
+
+    public MaskTimeline() {
+        this.masksByFrame = new TreeMap<>();
+    }
+
+    public synchronized void add(int frameIndex, Mask mask) {
+        masksByFrame.computeIfAbsent(frameIndex, (index) -> new ArrayList<>()).add(mask);
+    }
+
+    /**
+     * @return the masks of the frame in the order they were added, empty if the frame is not masked
+     */
+    public synchronized List<Mask> getMasks(int frameIndex) {
+        return masksByFrame.getOrDefault(frameIndex, Collections.emptyList());
+    }
+
+    /**
+     * @return true if any frame from startFrame (inclusive) to endFrame (exclusive) is masked
+     */
+    public synchronized boolean hasMasks(int startFrame, int endFrame) {
+        return !masksByFrame.subMap(startFrame, endFrame).isEmpty();
+    }
+
+    /**
+     * @return a copy of the masks of every masked frame, in frame order
+     */
+    public synchronized SortedMap<Integer, List<Mask>> getMasksByFrame() {
+        TreeMap<Integer, List<Mask>> copy = new TreeMap<>();
+        masksByFrame.forEach((frameIndex, masks) -> copy.put(frameIndex, new ArrayList<>(masks)));
+        return copy;
+    }
+
+    /**
+     * @return the masks of a single masker
+     */
+    public synchronized MaskTimeline select(String maskerName) {
+        MaskTimeline selection = new MaskTimeline();
+        masksByFrame.forEach((frameIndex, masks) -> masks.stream()
+                .filter(mask -> mask.getMaskerName().equals(maskerName))
+                .forEach(mask -> selection.add(frameIndex, mask)));
+        return selection;
+    }
+
+    /**
+     * Adds all the masks of the other timeline, attributed to the given masker
+     */
+    public void addAll(MaskTimeline other, String maskerName) {
+        other.getMasksByFrame().forEach((frameIndex, masks) -> {
+            for (Mask mask : masks) {
+                add(frameIndex, new Mask(maskerName, mask.getX(), mask.getY(), mask.getWidth(), mask.getHeight()));
+            }
+        });
+    }
+
+    public synchronized int getMaskedFrameCount() {
+        return masksByFrame.size();
+    }
+
+    /**
+     * A rectangle covered by the blurred subimage of a masker
+     */
+    public static class Mask {
+        private final String maskerName;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+
+        public Mask(String maskerName, int x, int y, int width, int height) {
+            this.maskerName = maskerName;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        public String getMaskerName() {
+            return maskerName;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Mask mask = (Mask) o;
+            return x == mask.x && y == mask.y && width == mask.width && height == mask.height &&
+                    maskerName.equals(mask.maskerName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(maskerName, x, y, width, height);
+        }
+    }
+}
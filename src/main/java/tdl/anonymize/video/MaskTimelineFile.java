@@ -0,0 +1,380 @@
+package tdl.anonymize.video;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Saves a MaskTimeline as JSON lines so it can be reviewed or edited between the detect and the apply passes.
+ *
+ * Each line holds the rectangles of one masker over a run of consecutive frames where they do not move:
+ * <pre>
+ * {"from":120,"to":180,"masker":"subimage-1.png","rects":[[10,20,64,32],[300,20,64,32]]}
+ * </pre>
+ * from is inclusive, to is exclusive, the rectangles are x, y, width and height. The rectangles cannot be negative
+ * or empty, whether they fit in the frames is checked when they are applied. Blank lines are ignored, so are the
+ * other members of a line. Each line is parsed as a whole JSON object, the name of the masker may hold any escape.
+ */
+public class MaskTimelineFile {
+
+    private MaskTimelineFile() {
+    }
+
+    public static void write(MaskTimeline timeline, Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            Map<String, Run> openRuns = new LinkedHashMap<>();
+            for (Map.Entry<Integer, List<MaskTimeline.Mask>> entry : timeline.getMasksByFrame().entrySet()) {
+                int frameIndex = entry.getKey();
+                Map<String, List<MaskTimeline.Mask>> masksByMasker = new LinkedHashMap<>();
+                for (MaskTimeline.Mask mask : entry.getValue()) {
+                    masksByMasker.computeIfAbsent(mask.getMaskerName(), (name) -> new ArrayList<>()).add(mask);
+                }
+
+                // Extend the runs that continue unchanged in this frame, close the others
+                Iterator<Run> runs = openRuns.values().iterator();
+                while (runs.hasNext()) {
+                    Run run = runs.next();
+                    List<MaskTimeline.Mask> masks = masksByMasker.get(run.maskerName);
+                    if (run.endFrame == frameIndex && run.masks.equals(masks)) {
+                        run.endFrame = frameIndex + 1;
+                        masksByMasker.remove(run.maskerName);
+                    } else {
+                        writeRun(writer, run);
+                        runs.remove();
+                    }
+                }
+                masksByMasker.forEach((maskerName, masks) ->
+                        openRuns.put(maskerName, new Run(maskerName, frameIndex, masks)));
+            }
+            for (Run run : openRuns.values()) {
+                writeRun(writer, run);
+            }
+        }
+    }
+
+    public static MaskTimeline read(Path path) throws IOException {
+        MaskTimeline timeline = new MaskTimeline();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                readLine(timeline, line, lineNumber);
+            }
+        }
+        return timeline;
+    }
+
+    private static void readLine(MaskTimeline timeline, String line, int lineNumber) throws IOException {
+        Object entry;
+        try {
+            entry = new JsonParser(line).parseLine();
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid timeline entry at line " + lineNumber + ": " + ex.getMessage(), ex);
+        }
+        if (!(entry instanceof Map)) {
+            throw new IOException("Invalid timeline entry at line " + lineNumber + ", expected an object: " + line);
+        }
+        Map<?, ?> members = (Map<?, ?>) entry;
+        long startFrame = getCount(members.get("from"), "from", lineNumber);
+        long endFrame = getCount(members.get("to"), "to", lineNumber);
+        Object maskerName = members.get("masker");
+        if (!(maskerName instanceof String)) {
+            throw new IOException("Missing masker at line " + lineNumber + ": " + line);
+        }
+        Object rects = members.get("rects");
+        if (!(rects instanceof List)) {
+            throw new IOException("Missing rects at line " + lineNumber + ": " + line);
+        }
+
+        // A rectangle that does not parse must not be skipped
+        List<MaskTimeline.Mask> masks = new ArrayList<>();
+        for (Object rect : (List<?>) rects) {
+            if (!(rect instanceof List) || ((List<?>) rect).size() != 4) {
+                throw new IOException("Invalid rectangle at line " + lineNumber + ": " + line);
+            }
+            List<?> values = (List<?>) rect;
+            MaskTimeline.Mask mask = new MaskTimeline.Mask((String) maskerName,
+                    getCoordinate(values.get(0), lineNumber), getCoordinate(values.get(1), lineNumber),
+                    getCoordinate(values.get(2), lineNumber), getCoordinate(values.get(3), lineNumber));
+            if (mask.getWidth() == 0 || mask.getHeight() == 0) {
+                throw new IOException("Empty rectangle at line " + lineNumber + ": " + line);
+            }
+            masks.add(mask);
+        }
+
+        for (long frameIndex = startFrame; frameIndex < endFrame; frameIndex++) {
+            for (MaskTimeline.Mask mask : masks) {
+                timeline.add((int) frameIndex, mask);
+            }
+        }
+    }
+
+    /**
+     * @return the value, a frame index, which must be a whole number from 0 to Integer.MAX_VALUE
+     */
+    private static long getCount(Object value, String name, int lineNumber) throws IOException {
+        if (!(value instanceof Long) || (Long) value < 0 || (Long) value > Integer.MAX_VALUE) {
+            throw new IOException("Invalid " + name + " at line " + lineNumber + ": " + value);
+        }
+        return (Long) value;
+    }
+
+    private static int getCoordinate(Object value, int lineNumber) throws IOException {
+        if (!(value instanceof Long) || (Long) value < 0 || (Long) value > Integer.MAX_VALUE) {
+            throw new IOException("Invalid rectangle at line " + lineNumber + ": " + value);
+        }
+        return (int) (long) (Long) value;
+    }
+
+    private static void writeRun(BufferedWriter writer, Run run) throws IOException {
+        StringBuilder line = new StringBuilder();
+        line.append("{\"from\":").append(run.startFrame)
+                .append(",\"to\":").append(run.endFrame)
+                .append(",\"masker\":\"").append(escape(run.maskerName))
+                .append("\",\"rects\":[");
+        for (int i = 0; i < run.masks.size(); i++) {
+            MaskTimeline.Mask mask = run.masks.get(i);
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append('[').append(mask.getX()).append(',').append(mask.getY()).append(',')
+                    .append(mask.getWidth()).append(',').append(mask.getHeight()).append(']');
+        }
+        line.append("]}");
+        writer.write(line.toString());
+        writer.newLine();
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * The same rectangles of a masker over consecutive frames
+     */
+    private static class Run {
+        private final String maskerName;
+        private final int startFrame;
+        private final List<MaskTimeline.Mask> masks;
+        private int endFrame;
+
+        Run(String maskerName, int startFrame, List<MaskTimeline.Mask> masks) {
+            this.maskerName = maskerName;
+            this.startFrame = startFrame;
+            this.endFrame = startFrame + 1;
+            this.masks = masks;
+        }
+    }
+
+    /**
+     * Reads the JSON value of a line: objects, arrays, strings, whole numbers, true, false and null.
+     * The numbers with a fraction or an exponent are rejected, a timeline only holds frame indexes and pixels.
+     */
+    private static class JsonParser {
+        private final String text;
+        private int position;
+
+        JsonParser(String text) {
+            this.text = text;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the line is not a single JSON value
+         */
+        Object parseLine() {
+            Object value = parseValue();
+            skipWhitespace();
+            if (position < text.length()) {
+                throw error("Unexpected content after the value");
+            }
+            return value;
+        }
+
+        private Object parseValue() {
+            skipWhitespace();
+            if (position >= text.length()) {
+                throw error("Unexpected end of line");
+            }
+            char c = text.charAt(position);
+            if (c == '{') {
+                return parseObject();
+            }
+            if (c == '[') {
+                return parseArray();
+            }
+            if (c == '"') {
+                return parseString();
+            }
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                return parseNumber();
+            }
+            if (text.startsWith("true", position)) {
+                position += 4;
+                return Boolean.TRUE;
+            }
+            if (text.startsWith("false", position)) {
+                position += 5;
+                return Boolean.FALSE;
+            }
+            if (text.startsWith("null", position)) {
+                position += 4;
+                return null;
+            }
+            throw error("Unexpected character '" + c + "'");
+        }
+
+        private Map<String, Object> parseObject() {
+            Map<String, Object> members = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+            if (consume('}')) {
+                return members;
+            }
+            do {
+                skipWhitespace();
+                if (position >= text.length() || text.charAt(position) != '"') {
+                    throw error("Expected the name of a member");
+                }
+                String name = parseString();
+                skipWhitespace();
+                expect(':');
+                Object value = parseValue();
+                if (members.containsKey(name)) {
+                    throw error("Duplicate member " + name);
+                }
+                members.put(name, value);
+                skipWhitespace();
+            } while (consume(','));
+            expect('}');
+            return members;
+        }
+
+        private List<Object> parseArray() {
+            List<Object> values = new ArrayList<>();
+            position++;
+            skipWhitespace();
+            if (consume(']')) {
+                return values;
+            }
+            do {
+                values.add(parseValue());
+                skipWhitespace();
+            } while (consume(','));
+            expect(']');
+            return values;
+        }
+
+        private String parseString() {
+            StringBuilder value = new StringBuilder();
+            position++;
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        value.append(escaped);
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = position < text.length() ? Character.digit(text.charAt(position++), 16) : -1;
+                            if (digit < 0) {
+                                throw error("Invalid unicode escape");
+                            }
+                            code = code * 16 + digit;
+                        }
+                        value.append((char) code);
+                        break;
+                    default:
+                        throw error("Invalid escape '\\" + escaped + "'");
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private Long parseNumber() {
+            int start = position;
+            consume('-');
+            while (position < text.length() && text.charAt(position) >= '0' && text.charAt(position) <= '9') {
+                position++;
+            }
+            if (position < text.length() && ".eE".indexOf(text.charAt(position)) >= 0) {
+                throw error("Expected a whole number");
+            }
+            try {
+                return Long.parseLong(text.substring(start, position));
+            } catch (NumberFormatException ex) {
+                throw error("Invalid number " + text.substring(start, position));
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && " \t\r\n".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+        }
+
+        private boolean consume(char expected) {
+            if (position < text.length() && text.charAt(position) == expected) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char expected) {
+            if (!consume(expected)) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at column " + (position + 1) + ": " + text);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package tdl.anonymize.video;
+
+import lombok.extern.slf4j.Slf4j;
+import tdl.anonymize.image.ImageMasker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the subimages to search in each read ahead frame from how often they were found.
+ *
+ * A subimage found in one of the last maxLatency read ahead frames is hot and searched in every read ahead frame.
+ * The other subimages are cold and only searched in one read ahead frame out of maxLatency, so a subimage that
+ * appears is found at most maxLatency read ahead frames later. The cold subimages are spread over the read ahead
+ * frames by their fingerprint, each frame searches about the same number of them. A subimage is searched in the
+ * same read ahead frames whatever the other subimages of the run, e.g. when it is detected on its own to be cached.
+ *
+ * Thread safe, the read ahead frames are scheduled and reported in order.
+ */
+@Slf4j
+class MaskerSchedule {
+    private final int maxLatency;
+    private final Map<ImageMasker, Stats> stats;
+    private long scheduledFrames;
+
+    /**
+     * @param maskers the subimages to schedule
+     * @param maxLatency the number of read ahead frames between two searches of a cold subimage
+     */
+    MaskerSchedule(List<ImageMasker> maskers, int maxLatency) {
+        this.maxLatency = Math.max(1, maxLatency);
+        this.stats = new LinkedHashMap<>();
+        for (ImageMasker masker : maskers) {
+            stats.put(masker, new Stats(Math.floorMod(masker.getFingerprint().hashCode(), this.maxLatency)));
+        }
+    }
+
+    /**
+     * @param readAheadIndex the number of read ahead frames scheduled before this one
+     * @param maskers the subimages that may be searched, in the order they are matched
+     * @return the subimages to search in the read ahead frame, in the same order
+     */
+    synchronized List<ImageMasker> select(long readAheadIndex, List<ImageMasker> maskers) {
+        scheduledFrames++;
+        List<ImageMasker> selected = new ArrayList<>();
+        for (ImageMasker masker : maskers) {
+            Stats maskerStats = stats.get(masker);
+            if (maskerStats == null || isHot(maskerStats, readAheadIndex) ||
+                    (readAheadIndex + maskerStats.phase) % maxLatency == 0) {
+                selected.add(masker);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @param readAheadIndex the index the read ahead frame was selected with
+     * @param searched the subimages searched in the read ahead frame
+     * @param found the subimages found in the read ahead frame
+     */
+    synchronized void record(long readAheadIndex, List<ImageMasker> searched, Collection<ImageMasker> found) {
+        for (ImageMasker masker : searched) {
+            Stats maskerStats = stats.get(masker);
+            if (maskerStats == null) {
+                continue;
+            }
+            maskerStats.searches++;
+            if (found.contains(masker)) {
+                maskerStats.hits++;
+                maskerStats.lastHit = readAheadIndex;
+            }
+        }
+    }
+
+    private boolean isHot(Stats maskerStats, long readAheadIndex) {
+        return maskerStats.lastHit >= 0 && readAheadIndex - maskerStats.lastHit <= maxLatency;
+    }
+
+    synchronized void logSummary() {
+        long searches = 0;
+        long hotMaskers = 0;
+        for (Map.Entry<ImageMasker, Stats> entry : stats.entrySet()) {
+            Stats maskerStats = entry.getValue();
+            boolean hot = isHot(maskerStats, scheduledFrames - 1);
+            searches += maskerStats.searches;
+            if (hot) {
+                hotMaskers++;
+            }
+            // The subimages never found are most of a large library
+            if (maskerStats.hits > 0) {
+                log.info("Schedule of {}: found in {} of {} searches, {}", entry.getKey().getName(),
+                        maskerStats.hits, maskerStats.searches, hot ? "hot" : "cold");
+            } else {
+                log.debug("Schedule of {}: never found in {} searches", entry.getKey().getName(),
+                        maskerStats.searches);
+            }
+        }
+        long allSearches = scheduledFrames * stats.size();
+        log.info("Masker schedule: {} of {} subimages hot at the end, {} of {} searches made ({}%), " +
+                        "cold subimages searched every {} read ahead frames",
+                hotMaskers, stats.size(), searches, allSearches,
+                allSearches > 0 ? String.format("%.1f", 100.0 * searches / allSearches) : "-", maxLatency);
+    }
+
+    private static class Stats {
+        private final int phase;
+        private long searches;
+        private long hits;
+        private long lastHit = -1;
+
+        Stats(int phase) {
+            this.phase = phase;
+        }
+    }
+}
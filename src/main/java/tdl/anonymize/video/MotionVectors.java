@@ -0,0 +1,106 @@
+package tdl.anonymize.video;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.avutil.AVFrame;
+import org.bytedeco.javacpp.avutil.AVFrameSideData;
+import org.bytedeco.javacpp.avutil.AVMotionVector;
+import org.bytedeco.javacv.Frame;
+import tdl.anonymize.image.TileHashes;
+
+import static org.bytedeco.javacpp.avutil.AV_FRAME_DATA_MOTION_VECTORS;
+import static org.bytedeco.javacpp.avutil.AV_PICTURE_TYPE_B;
+import static org.bytedeco.javacpp.avutil.AV_PICTURE_TYPE_P;
+import static org.bytedeco.javacpp.avutil.av_frame_get_side_data;
+
+/**
+ * Tells which macroblocks changed since the previous frame from the motion vectors exported by the decoder,
+ * without looking at the pixels. The decoder must be opened with flags2=+export_mvs.
+ *
+ * A macroblock is a candidate for being unchanged when all its pixels are predicted from a past frame with a zero
+ * motion vector. Intra coded blocks have no vector and moved blocks have a non zero one, both surely changed.
+ * The vectors cannot prove a macroblock unchanged: its residual is not exported, and the reference may be an
+ * older frame than the previous one when the encoder keeps several. The candidates must be confirmed on the pixels,
+ * the vectors only spare the comparison of the macroblocks that surely changed.
+ *
+ * Once a B-frame has been seen, no more hints are given.
+ */
+class MotionVectors {
+    static final int MACROBLOCK_SIZE = 16;
+    static final String DECODER_FLAGS = "flags2";
+    static final String EXPORT_MOTION_VECTORS = "+export_mvs";
+
+    private static final int MOTION_VECTOR_SIZE = Loader.sizeof(AVMotionVector.class);
+
+    private boolean sawBFrames;
+
+    /**
+     * @return the macroblocks that surely changed since the previous frame, null if the motion vectors cannot tell
+     */
+    TileHashes.Changes changedMacroblocks(Frame frame) {
+        if (!(frame.opaque instanceof AVFrame)) {
+            return null;
+        }
+        AVFrame picture = (AVFrame) frame.opaque;
+        if (picture.pict_type() == AV_PICTURE_TYPE_B) {
+            sawBFrames = true;
+        }
+        if (sawBFrames || picture.pict_type() != AV_PICTURE_TYPE_P) {
+            return null;
+        }
+
+        int width = frame.imageWidth;
+        int height = frame.imageHeight;
+        int cols = (width + MACROBLOCK_SIZE - 1) / MACROBLOCK_SIZE;
+        int rows = (height + MACROBLOCK_SIZE - 1) / MACROBLOCK_SIZE;
+        int[] stillPixels = new int[cols * rows];
+        boolean[] changed = new boolean[cols * rows];
+
+        AVFrameSideData sideData = av_frame_get_side_data(picture, AV_FRAME_DATA_MOTION_VECTORS);
+        if (sideData != null) {
+            int count = sideData.size() / MOTION_VECTOR_SIZE;
+            AVMotionVector vectors = new AVMotionVector(sideData.data()).capacity(count);
+            for (int i = 0; i < count; i++) {
+                AVMotionVector vector = vectors.position(i);
+                // The destination is the centre of the block
+                int left = vector.dst_x() - vector.w() / 2;
+                int top = vector.dst_y() - vector.h() / 2;
+                boolean still = vector.source() < 0 &&
+                        vector.src_x() == vector.dst_x() && vector.src_y() == vector.dst_y();
+                markBlock(left, top, vector.w(), vector.h(), still, width, height, cols, stillPixels, changed);
+            }
+        }
+
+        // Any pixel not predicted in place, including the intra blocks without a vector, changes the macroblock
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                int macroblockWidth = Math.min(MACROBLOCK_SIZE, width - col * MACROBLOCK_SIZE);
+                int macroblockHeight = Math.min(MACROBLOCK_SIZE, height - row * MACROBLOCK_SIZE);
+                int macroblock = row * cols + col;
+                if (stillPixels[macroblock] < macroblockWidth * macroblockHeight) {
+                    changed[macroblock] = true;
+                }
+            }
+        }
+        return TileHashes.changes(width, height, MACROBLOCK_SIZE, changed);
+    }
+
+    private static void markBlock(int left, int top, int blockWidth, int blockHeight, boolean still,
+                                  int width, int height, int cols, int[] stillPixels, boolean[] changed) {
+        int right = Math.min(width, left + blockWidth);
+        int bottom = Math.min(height, top + blockHeight);
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        for (int row = top / MACROBLOCK_SIZE; row * MACROBLOCK_SIZE < bottom; row++) {
+            for (int col = left / MACROBLOCK_SIZE; col * MACROBLOCK_SIZE < right; col++) {
+                int macroblock = row * cols + col;
+                if (!still) {
+                    changed[macroblock] = true;
+                    continue;
+                }
+                int overlapWidth = Math.min(right, (col + 1) * MACROBLOCK_SIZE) - Math.max(left, col * MACROBLOCK_SIZE);
+                int overlapHeight = Math.min(bottom, (row + 1) * MACROBLOCK_SIZE) - Math.max(top, row * MACROBLOCK_SIZE);
+                stillPixels[macroblock] += overlapWidth * overlapHeight;
+            }
+        }
+    }
+}
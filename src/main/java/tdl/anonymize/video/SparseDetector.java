@@ -0,0 +1,145 @@
+package tdl.anonymize.video;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Point;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.OpenCVFrameConverter.ToMat;
+import tdl.anonymize.image.FrameContext;
+import tdl.anonymize.image.ImageMasker;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUV420P;
+
+/**
+ * Finds the intervals of frames where each subimage appears without decoding the whole video.
+ *
+ * A few sample frames, usually keyframes, are searched for every subimage. Between two samples where a subimage
+ * appears in one and not in the other, the frame where it appears or disappears is found by bisection, each probe
+ * being a frame accurate seek. An appearance shorter than the distance between two samples can be missed when
+ * it falls between them.
+ */
+class SparseDetector implements AutoCloseable {
+    private final FFmpegFrameGrabber grabber;
+    private final ToMat frameConverter;
+    private final boolean yuvNative;
+    private int probeCount;
+
+    SparseDetector(Path inputPath, boolean yuvNative) throws FrameGrabber.Exception {
+        this.grabber = new FFmpegFrameGrabber(inputPath.toFile());
+        if (yuvNative) {
+            grabber.setPixelFormat(AV_PIX_FMT_YUV420P);
+        }
+        grabber.start();
+        if (yuvNative) {
+            VideoMasker.checkYuvFrameSize(grabber.getImageWidth(), grabber.getImageHeight());
+        }
+        this.frameConverter = new ToMat();
+        this.yuvNative = yuvNative;
+    }
+
+    /**
+     * @param samples the frames searched for all the subimages, in increasing order
+     * @return for each subimage, the intervals of frames where it appears
+     */
+    List<Interval> findIntervals(List<ImageMasker> maskers, List<Integer> samples) throws FrameGrabber.Exception {
+        List<boolean[]> sampled = new ArrayList<>();
+        for (int sample : samples) {
+            sampled.add(probe(sample, maskers));
+        }
+
+        List<Interval> intervals = new ArrayList<>();
+        for (int m = 0; m < maskers.size(); m++) {
+            ImageMasker masker = maskers.get(m);
+            int intervalStart = sampled.get(0)[m] ? samples.get(0) : -1;
+            for (int i = 1; i < samples.size(); i++) {
+                boolean before = sampled.get(i - 1)[m];
+                boolean after = sampled.get(i)[m];
+                if (before == after) {
+                    continue;
+                }
+                int transition = findTransition(masker, samples.get(i - 1), samples.get(i), before);
+                if (after) {
+                    intervalStart = transition;
+                } else {
+                    intervals.add(new Interval(masker, intervalStart, transition));
+                    intervalStart = -1;
+                }
+            }
+            if (intervalStart >= 0) {
+                intervals.add(new Interval(masker, intervalStart, samples.get(samples.size() - 1) + 1));
+            }
+        }
+        return intervals;
+    }
+
+    int getProbeCount() {
+        return probeCount;
+    }
+
+    /**
+     * @return the first frame after low where the subimage is no longer in the state it has at low
+     */
+    private int findTransition(ImageMasker masker, int low, int high, boolean lowState)
+            throws FrameGrabber.Exception {
+        List<ImageMasker> single = Collections.singletonList(masker);
+        while (high - low > 1) {
+            int middle = low + (high - low) / 2;
+            if (probe(middle, single)[0] == lowState) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return high;
+    }
+
+    private boolean[] probe(int frameIndex, List<ImageMasker> maskers) throws FrameGrabber.Exception {
+        probeCount++;
+        grabber.setFrameNumber(frameIndex);
+        Frame frame = grabber.grabImage();
+        boolean[] found = new boolean[maskers.size()];
+        if (frame == null) {
+            return found;
+        }
+
+        Mat mat = yuvNative ? VideoMasker.wrapI420(frame) : frameConverter.convert(frame);
+        try (FrameContext frameContext = yuvNative ? FrameContext.ofI420(mat) : new FrameContext(mat)) {
+            for (int i = 0; i < maskers.size(); i++) {
+                List<Point> points = maskers.get(i).findMatchingPoints(frameContext);
+                found[i] = !points.isEmpty();
+                points.forEach(Point::close);
+            }
+        } finally {
+            if (yuvNative) {
+                mat.close();
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void close() throws Exception {
+        grabber.close();
+    }
+
+    /**
+     * The frames, from startFrame (inclusive) to endFrame (exclusive), where a subimage appears
+     */
+    static class Interval {
+        final ImageMasker masker;
+        final int startFrame;
+        final int endFrame;
+
+        Interval(ImageMasker masker, int startFrame, int endFrame) {
+            this.masker = masker;
+            this.startFrame = startFrame;
+            this.endFrame = endFrame;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package tdl.anonymize.video;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.javacpp.avcodec.AVCodecParameters;
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.bytedeco.javacpp.avformat.AVFormatContext;
+import org.bytedeco.javacpp.avformat.AVStream;
+import org.bytedeco.javacpp.avutil.AVRational;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bytedeco.javacpp.avcodec.av_packet_unref;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.javacpp.avutil.AV_NOPTS_VALUE;
+
+/**
+ * Moves the compressed video packets between files without decoding them.
+ *
+ * The segments are written as MPEG-TS so each one carries its SPS/PPS in band. Once concatenated into the mp4,
+ * the re-encoded segments keep their own parameter sets next to their keyframes. Only the video stream is copied,
+ * the same as when the whole video is re-encoded. The mp4 describes the stream with the parameters of the first
+ * segment, the segments can only be joined when they are all encoded with the same ones, down to the bytes of
+ * their parameter sets.
+ */
+@Slf4j
+class StreamCopy {
+    static final String SEGMENT_FORMAT = "mpegts";
+
+    private StreamCopy() {
+    }
+
+    static int findVideoStream(AVFormatContext formatContext) {
+        for (int i = 0; i < formatContext.nb_streams(); i++) {
+            if (formatContext.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No video stream found");
+    }
+
+    /**
+     * The recorder must be started with the format context of the grabber the packets come from
+     */
+    static FFmpegFrameRecorder createCopyRecorder(FFmpegFrameGrabber grabber, Path outputPath, String format) {
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
+                outputPath.toFile(),
+                grabber.getImageWidth(),
+                grabber.getImageHeight(),
+                0
+        );
+        recorder.setFormat(format);
+        recorder.setVideoCodec(grabber.getVideoCodec());
+        recorder.setFrameRate(grabber.getFrameRate());
+        return recorder;
+    }
+
+    static void closeRecorder(FFmpegFrameRecorder recorder) throws FrameRecorder.Exception {
+        if (recorder != null) {
+            recorder.stop();
+            recorder.release();
+        }
+    }
+
+    /**
+     * The extradata holds the parameter sets of the stream, e.g. the SPS and PPS of H.264, which also tell the
+     * number of reordered frames. Two parts with the same profile and level may still differ there.
+     *
+     * @return true if the video streams of the parts have the same codec, profile, level, size, pixel format and
+     * extradata
+     */
+    static boolean haveSameParameters(List<Path> parts) throws Exception {
+        String firstParameters = null;
+        byte[] firstExtradata = null;
+        for (Path part : parts) {
+            FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(part.toFile());
+            grabber.start();
+            try {
+                AVFormatContext formatContext = grabber.getFormatContext();
+                AVCodecParameters parameters = formatContext.streams(findVideoStream(formatContext)).codecpar();
+                String partParameters = parameters.codec_id() + "/" + parameters.profile() + "/" +
+                        parameters.level() + "/" + parameters.width() + "x" + parameters.height() + "/" +
+                        parameters.format();
+                byte[] partExtradata = new byte[Math.max(0, parameters.extradata_size())];
+                if (partExtradata.length > 0) {
+                    parameters.extradata().get(partExtradata);
+                }
+                if (firstParameters == null) {
+                    firstParameters = partParameters;
+                    firstExtradata = partExtradata;
+                } else if (!firstParameters.equals(partParameters)) {
+                    log.warn("The stream of {} ({}) does not match the first part ({})",
+                            part.getFileName(), partParameters, firstParameters);
+                    return false;
+                } else if (!Arrays.equals(firstExtradata, partExtradata)) {
+                    log.warn("The parameter sets of {} ({} bytes) do not match the first part ({} bytes)",
+                            part.getFileName(), partExtradata.length, firstExtradata.length);
+                    return false;
+                }
+            } finally {
+                grabber.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Joins the video streams of the parts, in order, into a single mp4.
+     * The timestamps of each part are shifted so that its first frame is presented where the previous part ends.
+     * With B-frames a part is decoded ahead of its presentation, its first decoding timestamp is before the end of
+     * the previous part. The part is delayed further if needed so that the decoding timestamps keep increasing.
+     */
+    static void concat(List<Path> parts, Path outputPath) throws Exception {
+        FFmpegFrameGrabber first = new FFmpegFrameGrabber(parts.get(0).toFile());
+        first.start();
+        FFmpegFrameRecorder recorder = null;
+        try {
+            recorder = createCopyRecorder(first, outputPath, "mp4");
+            recorder.start(first.getFormatContext());
+
+            // The recorder maps the packets through the streams of the first part
+            int targetStream = findVideoStream(first.getFormatContext());
+            Position position = new Position();
+            for (Path part : parts) {
+                FFmpegFrameGrabber grabber = part.equals(parts.get(0)) ? first : new FFmpegFrameGrabber(part.toFile());
+                if (grabber != first) {
+                    grabber.start();
+                }
+                try {
+                    copyPackets(grabber, recorder, targetStream, position);
+                } finally {
+                    if (grabber != first) {
+                        grabber.close();
+                    }
+                }
+            }
+        } finally {
+            closeRecorder(recorder);
+            first.close();
+        }
+    }
+
+    /**
+     * The parts start with a keyframe of a closed GOP, their first packet is also the first frame presented.
+     * The same shift is applied to the presentation and the decoding timestamps of a part, so the reordering of
+     * its B-frames is kept.
+     */
+    private static void copyPackets(FFmpegFrameGrabber grabber, FFmpegFrameRecorder recorder, int targetStream,
+                                    Position position) throws Exception {
+        int videoStream = findVideoStream(grabber.getFormatContext());
+        AVStream stream = grabber.getFormatContext().streams(videoStream);
+        AVRational timeBase = stream.time_base();
+        long frameDuration = Math.max(1,
+                Math.round(timeBase.den() / (timeBase.num() * grabber.getFrameRate())));
+
+        boolean firstPacket = true;
+        long shift = 0;
+        long start = position.end;
+        AVPacket packet;
+        while ((packet = grabber.grabPacket()) != null) {
+            if (packet.stream_index() == videoStream) {
+                if (firstPacket) {
+                    long firstPts = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : packet.dts();
+                    shift = start - firstPts;
+                    if (packet.dts() != AV_NOPTS_VALUE && position.lastDts != AV_NOPTS_VALUE &&
+                            packet.dts() + shift <= position.lastDts) {
+                        shift = position.lastDts + 1 - packet.dts();
+                    }
+                    firstPacket = false;
+                }
+                if (packet.dts() != AV_NOPTS_VALUE) {
+                    packet.dts(packet.dts() + shift);
+                    position.lastDts = packet.dts();
+                }
+                if (packet.pts() != AV_NOPTS_VALUE) {
+                    packet.pts(packet.pts() + shift);
+                    position.end = Math.max(position.end, packet.pts() + frameDuration);
+                }
+                packet.stream_index(targetStream);
+                recorder.recordPacket(packet);
+            }
+            av_packet_unref(packet);
+        }
+    }
+
+    /**
+     * Where the parts copied so far end
+     */
+    private static class Position {
+        /**
+         * The presentation timestamp just after the last frame copied
+         */
+        long end = 0;
+        long lastDts = AV_NOPTS_VALUE;
+    }
+}
@@ -1,24 +1,54 @@
 package tdl.anonymize.video;
 
 import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.avcodec.AVPacket;
 import org.bytedeco.javacpp.opencv_core;
 import org.bytedeco.javacpp.opencv_core.Mat;
 import org.bytedeco.javacv.*;
 import org.bytedeco.javacv.OpenCVFrameConverter.ToMat;
+import tdl.anonymize.image.FrameContext;
 import tdl.anonymize.image.ImageMasker;
 import tdl.anonymize.image.ImageMaskerException;
+import tdl.anonymize.image.ScrollEstimator;
+import tdl.anonymize.image.TemplateIndex;
+import tdl.anonymize.image.TileHashes;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.javacpp.avcodec.av_packet_unref;
 import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUV420P;
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
 
 /**
  * Receives a path to a video and then findMatchingPoints.
  *
+ * The video is processed in blocks of readAheadStep frames. The last frame of each block (the read ahead frame)
+ * is matched against all the subimages, the other frames in the block are only matched against the subimages
+ * that have been triggered by the surrounding read ahead frames.
+ *
+ * With a pipeline depth greater than zero the work is split in stages:
+ *  - the decoder (calling thread) reads blocks and schedules them
+ *  - a pool of workers matches the read ahead frames and masks the blocks
+ *  - a single encoder thread records the masked blocks in order
+ * The stages are joined by a bounded queue so the decoder cannot run more than pipelineDepth blocks ahead.
+ *
+ * The video is decoded once, the decoded frames are held in a ring buffer sized from the block size and the
+ * pipeline depth until the encoder has recorded them.
+ *
+ * With smart re-encoding a first pass only detects the masks. The GOPs without any mask are then copied from the
+ * input packet by packet, only the GOPs with at least one masked frame are decoded, masked and encoded again.
+ * The two passes are also available on their own, see detect and apply, the masks can be saved in between.
+ *
  * https://github.com/bytedeco/javacv-examples/blob/e3fc16b3c1da8a284637984c7a813fa1007212a8/OpenCV2_Cookbook/src/main/scala/opencv2_cookbook/chapter11/VideoProcessor.scala
  */
 @Slf4j
@@ -27,12 +57,38 @@ public class VideoMasker implements AutoCloseable {
     private final Path inputPath;
     private final Path outputPath;
     private final List<ImageMasker> allSubImageMaskers;
+    private int pipelineDepth;
+    private int workerThreads;
+    private int trackingRadius;
+    private int refreshInterval;
+    private int dirtyTileSize;
+    private final AtomicLong scannedTiles;
+    private final AtomicLong skippedTiles;
+    private final AtomicLong trackedMatches;
+    private final AtomicLong lostTracks;
+    private final AtomicLong scrolledFrames;
+    private final AtomicLong shiftedMatches;
+    private final AtomicLong failedShifts;
+    private ForkJoinPool bandPool;
+    private ExecutorService maskerPool;
+    private boolean yuvNative;
+    private boolean smartReencode;
+    private DetectionCache detectionCache;
+    private int segmentThreads;
+    private boolean motionVectors;
+    private int sparseStride;
+    private int minAdaptiveStep;
+    private int maxAdaptiveStep;
+    private ScrollEstimator scrollEstimator;
+    private TemplateIndex templateIndex;
+    private int scheduleLatency;
+    private final AtomicLong indexedSearches;
+    private final AtomicLong verifiedCandidates;
+    private final AtomicLong detectionCacheHits;
 
     //TODO: Wrap frame grabber exception
     public VideoMasker(Path inputPath, Path outputPath, List<Path> subImagePaths, double matchingThreshold) {
-        this.inputPath = inputPath;
-        this.outputPath = outputPath;
-        this.allSubImageMaskers = subImagePaths.stream().map((path) -> {
+        this(inputPath, outputPath, subImagePaths.stream().map((path) -> {
             try {
                 return new ImageMasker(path, matchingThreshold);
             } catch (ImageMaskerException ex) {
@@ -40,85 +96,1038 @@ public class VideoMasker implements AutoCloseable {
             }
         })
                 .filter(Objects::nonNull)
-                .collect(Collectors.toList());
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * @param subImageMaskers the maskers of the subimages, e.g. read from a TemplateBundle. They are closed
+     *                        with the video masker.
+     */
+    public VideoMasker(Path inputPath, Path outputPath, List<ImageMasker> subImageMaskers) {
+        this.inputPath = inputPath;
+        this.outputPath = outputPath;
+        this.allSubImageMaskers = subImageMaskers;
+        this.pipelineDepth = 0;
+        this.workerThreads = Runtime.getRuntime().availableProcessors();
+        this.trackingRadius = 0;
+        this.refreshInterval = 0;
+        this.dirtyTileSize = 0;
+        this.scannedTiles = new AtomicLong();
+        this.skippedTiles = new AtomicLong();
+        this.trackedMatches = new AtomicLong();
+        this.lostTracks = new AtomicLong();
+        this.scrolledFrames = new AtomicLong();
+        this.shiftedMatches = new AtomicLong();
+        this.failedShifts = new AtomicLong();
+        this.indexedSearches = new AtomicLong();
+        this.verifiedCandidates = new AtomicLong();
+        this.detectionCacheHits = new AtomicLong();
+    }
+
+    /**
+     * @param pipelineDepth the number of blocks allowed in flight between the decoder and the encoder.
+     *                      Zero runs all the stages sequentially on the calling thread.
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = Math.max(0, pipelineDepth);
+    }
+
+    /**
+     * @param workerThreads the number of threads used to match and mask blocks when the pipeline is enabled
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = Math.max(1, workerThreads);
+    }
+
+    /**
+     * @param pyramidLevels see ImageMasker.setPyramidLevels
+     */
+    public void setPyramidLevels(int pyramidLevels) {
+        allSubImageMaskers.forEach(masker -> masker.setPyramidLevels(pyramidLevels));
+    }
+
+    /**
+     * The subimages whose file name contains ImageMasker.EXACT_NAME_MARKER are always matched exactly.
+     *
+     * @param matchMode see ImageMasker.MatchMode
+     */
+    public void setMatchMode(ImageMasker.MatchMode matchMode) {
+        allSubImageMaskers.forEach(masker -> masker.setMatchMode(
+                masker.getName().contains(ImageMasker.EXACT_NAME_MARKER) ? ImageMasker.MatchMode.EXACT : matchMode));
+    }
+
+    /**
+     * @param spectrumMatching see ImageMasker.setSpectrumMatching
+     */
+    public void setSpectrumMatching(boolean spectrumMatching) {
+        allSubImageMaskers.forEach(masker -> masker.setSpectrumMatching(spectrumMatching));
+    }
+
+    /**
+     * @param prefilter see ImageMasker.setPrefilter
+     */
+    public void setPrefilter(boolean prefilter) {
+        allSubImageMaskers.forEach(masker -> masker.setPrefilter(prefilter));
+    }
+
+    /**
+     * When tracking, the frames between two read ahead frames first search for each active subimage
+     * around the points matched in the frame before. The whole frame is searched if one of the points is lost,
+     * on every read ahead frame and every trackingRefreshInterval frames to catch new occurrences.
+     *
+     * @param trackingRadius how far, in pixels, a match is expected to move between two frames. 0 to disable.
+     * @param trackingRefreshInterval the number of frames between two full searches, 0 to only refresh on the
+     *                                read ahead frames
+     */
+    public void setTracking(int trackingRadius, int trackingRefreshInterval) {
+        this.trackingRadius = Math.max(0, trackingRadius);
+        this.refreshInterval = Math.max(0, trackingRefreshInterval);
+    }
+
+    /**
+     * When enabled, the luma of each frame between two read ahead frames is split in tiles that are compared with
+     * the frame before. Only the changed tiles, padded by the size of the subimage, are searched. The matches that
+     * do not overlap a changed tile are carried forward. Takes precedence over tracking, the refresh interval set
+     * with setTracking also applies.
+     *
+     * @param dirtyTileSize the side of the tiles in pixels, 0 to disable
+     */
+    public void setDirtyTileSize(int dirtyTileSize) {
+        this.dirtyTileSize = Math.max(0, dirtyTileSize);
+    }
+
+    /**
+     * When enabled, the global translation of each frame between two read ahead frames is estimated from the
+     * frame before by phase correlation. When the frame scrolled, the previous matches are moved by the shift and
+     * verified in a small window. The frame is compared with the frame before moved by the shift, the strips
+     * revealed by the scrolling and the content that changed in place are searched for new matches. The whole
+     * frame is searched when a moved match cannot be verified. Takes precedence over tracking, dirty tiles and
+     * motion vectors on the frames that scrolled.
+     *
+     * @param scrollDetection true to relocate the matches of the frames that scrolled
+     */
+    public void setScrollDetection(boolean scrollDetection) {
+        this.scrollEstimator = scrollDetection ? new ScrollEstimator() : null;
+    }
+
+    /**
+     * When enabled, the subimages are indexed by the signature of a patch in a TemplateIndex. The frames searched
+     * as a whole are reduced to their block means and looked up in the index once, then each indexed subimage is
+     * only matched around its candidates, so the cost of a full search grows slowly with the number of subimages.
+     * The subimages that cannot be indexed, or with too many candidates in a frame, are searched as usual.
+     *
+     * A match is only found if its anchor patch keeps its signature in the frame: a subimage whose brightest and
+     * darkest cells are close may be missed in a heavily compressed frame.
+     *
+     * @param templateIndex true to index the subimages
+     */
+    public void setTemplateIndex(boolean templateIndex) {
+        if (!templateIndex) {
+            this.templateIndex = null;
+            return;
+        }
+        this.templateIndex = TemplateIndex.of(allSubImageMaskers);
+        log.info("Template index: {} of {} subimages indexed", this.templateIndex.getIndexedMaskers().size(),
+                allSubImageMaskers.size());
+    }
+
+    /**
+     * When enabled, the subimages not found recently are only searched in one read ahead frame out of
+     * scheduleLatency, see MaskerSchedule. The subimages found in one of the last scheduleLatency read ahead frames
+     * are searched in every read ahead frame. A subimage that appears is masked at most scheduleLatency read ahead
+     * frames late, the schedule is logged at the end of the run. Only applies when processing the whole video
+     * without a detection cache: the searches of a subimage depend on the other subimages, which are not all
+     * detected together when some of them are cached.
+     *
+     * @param scheduleLatency the number of read ahead frames between two searches of a subimage not found
+     *                        recently, 0 to search every subimage in every read ahead frame
+     */
+    public void setMaskerSchedule(int scheduleLatency) {
+        this.scheduleLatency = Math.max(0, scheduleLatency);
+    }
+
+    /**
+     * @param bandThreads the number of threads matching the bands of a frame in parallel, 0 to disable
+     */
+    public void setBandThreads(int bandThreads) {
+        if (bandPool != null) {
+            bandPool.shutdown();
+        }
+        bandPool = bandThreads > 0 ? new ForkJoinPool(bandThreads) : null;
+        allSubImageMaskers.forEach(masker -> masker.setBandPool(bandPool));
+    }
+
+    /**
+     * @param maskerThreads the number of threads matching the subimages of a frame concurrently, 0 to disable
+     */
+    public void setMaskerThreads(int maskerThreads) {
+        if (maskerPool != null) {
+            maskerPool.shutdown();
+        }
+        maskerPool = maskerThreads > 0 ? Executors.newFixedThreadPool(maskerThreads, daemonThreads()) : null;
+    }
+
+    private static ThreadFactory daemonThreads() {
+        return (runnable) -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * When enabled the frames are decoded to YUV420P and never converted to BGR. The subimages are matched on the
+     * Y plane, the masks are written to the Y, U and V planes and the planes are handed to the encoder as they are.
+     * The frames must have an even width and height and the subimages must be matched by correlation.
+     *
+     * @param yuvNative true to skip the BGR round trip
+     */
+    public void setYuvNative(boolean yuvNative) {
+        this.yuvNative = yuvNative;
+    }
+
+    /**
+     * The YUV420P frames are laid out as a single Mat of height * 3 / 2 rows, which cannot hold an odd size
+     */
+    static void checkYuvFrameSize(int width, int height) {
+        if (width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("The YUV native mode needs an even frame size, the input is " +
+                    width + "x" + height);
+        }
+    }
+
+    /**
+     * Views the planes of a decoded YUV420P frame as a single Mat of height * 3 / 2 rows, without copying them.
+     * The planes must follow each other without padding, the rows of a frame whose stride differs from its width
+     * would be mixed up: the strides of its chroma planes are not known from the frame.
+     *
+     * @return a view over the buffer of the frame, which must outlive it
+     * @throws IllegalArgumentException if the frame is not a single buffer of unpadded planes
+     */
+    public static Mat wrapI420(Frame frame) {
+        checkYuvFrameSize(frame.imageWidth, frame.imageHeight);
+        if (frame.image == null || frame.image.length != 1 || frame.imageStride != frame.imageWidth) {
+            throw new IllegalArgumentException("The YUV native mode needs frames without padding, the frame is " +
+                    frame.imageWidth + " pixels wide with a stride of " + frame.imageStride);
+        }
+        ByteBuffer planes = (ByteBuffer) frame.image[0];
+        int size = frame.imageWidth * frame.imageHeight * 3 / 2;
+        if (planes.capacity() < size) {
+            throw new IllegalArgumentException("The YUV frame holds " + planes.capacity() + " bytes, expected " +
+                    size);
+        }
+        return new Mat(frame.imageHeight * 3 / 2, frame.imageWidth, CV_8UC1, new BytePointer(planes));
+    }
+
+    /**
+     * When enabled the masks are detected first. The GOPs (keyframe to keyframe intervals) without any mask are
+     * stream copied, only the GOPs with a masked frame are re-encoded. When the input has open GOPs, or is not
+     * encoded with the parameters of the re-encoded GOPs, the whole video is re-encoded instead.
+     *
+     * @param smartReencode true to only re-encode the GOPs that need masking
+     */
+    public void setSmartReencode(boolean smartReencode) {
+        this.smartReencode = smartReencode;
+    }
+
+    /**
+     * When set, the masks detected for each subimage are stored in the directory. A later detection on the same
+     * video with the same settings only matches the subimages that are not in the cache. The masker schedule is
+     * not used with a cache.
+     *
+     * @param cacheDirectory the directory holding the cache, null to disable
+     * @param maxBytes the size above which the least recently used entries are deleted
+     */
+    public void setDetectionCache(Path cacheDirectory, long maxBytes) {
+        this.detectionCache = cacheDirectory != null ? new DetectionCache(cacheDirectory, maxBytes) : null;
+    }
+
+    /**
+     * When enabled the video is split at keyframes into segments of about the same length, masked in parallel
+     * and joined without re-encoding. Each segment starts matching from the block boundary before it so the masks
+     * are the same as in a single pass. Does not apply to smart re-encoding nor to cached detections.
+     *
+     * @param segmentThreads the number of segments processed at the same time, 0 to disable
+     */
+    public void setSegmentThreads(int segmentThreads) {
+        this.segmentThreads = Math.max(0, segmentThreads);
+    }
+
+    /**
+     * When enabled the decoder exports the motion vectors, and the frames between two read ahead frames are
+     * compared as dirty tiles of the size of a macroblock, whatever the dirty tile size. The macroblocks the vectors
+     * show as intra coded or moved are searched without comparing their pixels. The macroblocks predicted in place
+     * are only skipped if their pixels did not change, they may carry a residual or come from an older frame.
+     * See MotionVectors for the limits.
+     *
+     * @param motionVectors true to use the motion vectors of the stream
+     */
+    public void setMotionVectors(boolean motionVectors) {
+        this.motionVectors = motionVectors;
+    }
+
+    /**
+     * When enabled the detection does not decode the whole video. The keyframes about sparseStride frames apart
+     * are searched first, the frames where each subimage appears or disappears are then found by bisection with
+     * frame accurate seeks. Only the intervals where a subimage appears are decoded and matched block by block.
+     * A subimage shown for less than sparseStride frames between two samples can be missed. Combine with smart
+     * re-encoding so the masking also skips the clean parts of the video.
+     *
+     * @param sparseStride the minimum distance between two sampled keyframes, 0 to decode every frame
+     */
+    public void setSparseStride(int sparseStride) {
+        this.sparseStride = Math.max(0, sparseStride);
+    }
+
+    /**
+     * When enabled the read ahead step of each block is picked from how often the matches changed between the
+     * read ahead frames, see AdaptiveStep. The step passed to run or detect is the initial one. Only applies when
+     * the whole video is processed in one pass, the segments, the sparse detection and the detection cache need
+     * fixed blocks. When pipelined, the decoder waits for the read ahead frame of each block to be matched before
+     * reading the next block, so the output stays the same as the sequential run.
+     *
+     * @param minAdaptiveStep the smallest step, used while the matches keep changing
+     * @param maxAdaptiveStep the largest step, reached during static stretches, 0 to keep the step fixed
+     */
+    public void setAdaptiveStep(int minAdaptiveStep, int maxAdaptiveStep) {
+        this.minAdaptiveStep = Math.max(1, minAdaptiveStep);
+        this.maxAdaptiveStep = Math.max(0, maxAdaptiveStep);
     }
 
     public void run(int readAheadStep) throws Exception {
-        try (Grabber sequentialGrabber = createGrabber(); Grabber readAheadGrabber = createGrabber()) {
-            sequentialGrabber.start();
-            readAheadGrabber.start();
-            try (FFmpegFrameRecorder recorder = createRecorder(sequentialGrabber)) {
-                recorder.start();
-                int currentFrameIndex = 0;
-                int totalFrames = sequentialGrabber.getLengthInFrames();
-                List<ImageMasker> activeImageMaskers = new ArrayList<>();
+        checkMatchModes();
+        resetTileCounters();
+        // The detection cache is filled by the detection pass, the sparse detection only runs as its own pass
+        if (smartReencode || detectionCache != null || sparseStride > 0) {
+            apply(detect(readAheadStep));
+        } else if (segmentThreads > 0) {
+            runSegments(readAheadStep);
+        } else {
+            process(readAheadStep, outputPath, null, allSubImageMaskers);
+        }
+        logTileCounters();
+    }
 
-                // Start with no triggered matchers and no previous matching points
-                ProcessedFrame previousReadAheadFrame = new ProcessedFrame(null, new HashMap<>());
-                HashMap<ImageMasker, List<opencv_core.Point>> reusableMatches = new HashMap<>();
+    /**
+     * Matches the subimages without masking or encoding anything.
+     *
+     * @return the masks of each frame
+     */
+    public MaskTimeline detect(int readAheadStep) throws Exception {
+        checkMatchModes();
+        resetTileCounters();
+        try {
+            return detectWithCache(readAheadStep);
+        } finally {
+            logTileCounters();
+        }
+    }
 
+    /**
+     * @return the dirty tiles compared in the last run that had changed and were searched
+     */
+    public long getScannedTiles() {
+        return scannedTiles.get();
+    }
 
-                while (currentFrameIndex < totalFrames) {
-                    // Sync with the grabber index in case some audio frames have been skipped
-                    currentFrameIndex = Math.max(currentFrameIndex, sequentialGrabber.getFrameNumber());
+    /**
+     * @return the dirty tiles compared in the last run that had not changed and were skipped
+     */
+    public long getSkippedTiles() {
+        return skippedTiles.get();
+    }
 
-                    int framesToReadAhead = Math.min(readAheadStep, totalFrames - currentFrameIndex);
-                    int normalFramesToRead = framesToReadAhead - 1;
+    /**
+     * @return the previous matches found again around their position by the tracking in the last run
+     */
+    public long getTrackedMatches() {
+        return trackedMatches.get();
+    }
 
-                    long timeBefore = System.nanoTime();
+    /**
+     * @return the frames of the last run that scrolled since the frame before
+     */
+    public long getScrolledFrames() {
+        return scrolledFrames.get();
+    }
 
-                    //Skip the normal frames
-                    for (int i = 0; i < normalFramesToRead; i++) {
-                        readAheadGrabber.grabImage();
-                    }
-                    reusableMatches.clear();
-                    ProcessedFrame editedReadAheadFrame = processFrame(readAheadGrabber.grabImage(), allSubImageMaskers, reusableMatches);
-
-                    //Compute active maskers
-                    activeImageMaskers.clear();
-                    for (ImageMasker imageMasker : allSubImageMaskers) {
-                        if (previousReadAheadFrame.triggeredMaskers.containsKey(imageMasker) ||
-                                editedReadAheadFrame.triggeredMaskers.containsKey(imageMasker)) {
-                            activeImageMaskers.add(imageMasker);
-                        }
+    /**
+     * @return the previous matches found again where the scrolling moved them in the last run
+     */
+    public long getShiftedMatches() {
+        return shiftedMatches.get();
+    }
+
+    /**
+     * @return the number of subimages whose masks were read from the detection cache by the last run
+     */
+    public long getDetectionCacheHits() {
+        return detectionCacheHits.get();
+    }
+
+    /**
+     * The Y plane is in the limited range of the video, the grey subimages in the full range of the BGR frames.
+     * Only the correlation, which does not depend on the range, finds them in the Y plane.
+     */
+    private void checkMatchModes() {
+        if (!yuvNative) {
+            return;
+        }
+        for (ImageMasker masker : allSubImageMaskers) {
+            if (masker.getMatchMode() != ImageMasker.MatchMode.CORRELATION) {
+                throw new IllegalArgumentException("The YUV native mode cannot match " + masker.getName() +
+                        " exactly, the Y plane does not hold the grey levels of the subimage");
+            }
+        }
+    }
+
+    private MaskTimeline detectWithCache(int readAheadStep) throws Exception {
+        if (detectionCache == null) {
+            MaskTimeline timeline = new MaskTimeline();
+            detectMaskers(readAheadStep, allSubImageMaskers, timeline);
+            return timeline;
+        }
+
+        // The maskers do not depend on each other, each one is cached on its own
+        String videoHash = DetectionCache.hashFile(inputPath);
+        Map<ImageMasker, String> cacheKeys = new HashMap<>();
+        Map<ImageMasker, MaskTimeline> cachedTimelines = new HashMap<>();
+        List<ImageMasker> missingMaskers = new ArrayList<>();
+        for (ImageMasker masker : allSubImageMaskers) {
+            String cacheKey = detectionCacheKey(videoHash, masker, readAheadStep);
+            cacheKeys.put(masker, cacheKey);
+            MaskTimeline cachedTimeline = detectionCache.get(cacheKey);
+            if (cachedTimeline != null) {
+                cachedTimelines.put(masker, cachedTimeline);
+            } else {
+                missingMaskers.add(masker);
+            }
+        }
+        detectionCacheHits.addAndGet(cachedTimelines.size());
+        log.info("Detection cache: {} of {} subimages found", cachedTimelines.size(), allSubImageMaskers.size());
+
+        MaskTimeline detectedTimeline = new MaskTimeline();
+        if (!missingMaskers.isEmpty()) {
+            detectMaskers(readAheadStep, missingMaskers, detectedTimeline);
+            for (ImageMasker masker : missingMaskers) {
+                detectionCache.put(cacheKeys.get(masker), detectedTimeline.select(masker.getName()));
+            }
+        }
+
+        // Keep the order of the maskers within each frame
+        MaskTimeline timeline = new MaskTimeline();
+        for (ImageMasker masker : allSubImageMaskers) {
+            MaskTimeline maskerTimeline = cachedTimelines.containsKey(masker) ?
+                    cachedTimelines.get(masker) : detectedTimeline.select(masker.getName());
+            timeline.addAll(maskerTimeline, masker.getName());
+        }
+        return timeline;
+    }
+
+    private void detectMaskers(int readAheadStep, List<ImageMasker> maskers, MaskTimeline timeline)
+            throws Exception {
+        if (sparseStride == 0) {
+            process(readAheadStep, null, timeline, maskers);
+            return;
+        }
+
+        KeyframeIndex keyframeIndex = KeyframeIndex.scan(inputPath);
+        List<Integer> samples = keyframeIndex.sample(sparseStride);
+        List<SparseDetector.Interval> intervals;
+        try (SparseDetector sparseDetector = new SparseDetector(inputPath, yuvNative)) {
+            intervals = sparseDetector.findIntervals(maskers, samples);
+            log.info("Sparse detection: {} samples, {} frames probed, {} intervals",
+                    samples.size(), sparseDetector.getProbeCount(), intervals.size());
+        }
+
+        // Match the overlapping intervals together, with one frame of margin on each side
+        intervals.sort(Comparator.comparingInt(interval -> interval.startFrame));
+        int index = 0;
+        while (index < intervals.size()) {
+            int startFrame = Math.max(0, intervals.get(index).startFrame - 1);
+            int endFrame = Math.min(keyframeIndex.getTotalFrames(), intervals.get(index).endFrame + 1);
+            Set<ImageMasker> rangeMaskers = new HashSet<>();
+            while (index < intervals.size() && intervals.get(index).startFrame - 1 <= endFrame) {
+                endFrame = Math.max(endFrame,
+                        Math.min(keyframeIndex.getTotalFrames(), intervals.get(index).endFrame + 1));
+                rangeMaskers.add(intervals.get(index).masker);
+                index++;
+            }
+            List<ImageMasker> orderedMaskers = maskers.stream().filter(rangeMaskers::contains)
+                    .collect(Collectors.toList());
+            process(readAheadStep, orderedMaskers, startFrame, endFrame, null, null, timeline);
+        }
+    }
+
+    /**
+     * Everything that changes the matches of a subimage in a video. The masker schedule, which depends on the other
+     * subimages, is not used with a cache.
+     */
+    private String detectionCacheKey(String videoHash, ImageMasker masker, int readAheadStep) {
+        return DetectionCache.key(
+                videoHash,
+                masker.getFingerprint(),
+                Double.toString(masker.getThreshold()),
+                "pyramidLevels=" + masker.getPyramidLevels(),
+                "matchMode=" + masker.getMatchMode(),
+                "prefilter=" + masker.isPrefilter(),
+                "spectrum=" + masker.isSpectrumMatching(),
+                "readAheadStep=" + readAheadStep,
+                "tracking=" + trackingRadius + "/" + refreshInterval,
+                "dirtyTileSize=" + dirtyTileSize,
+                "motionVectors=" + motionVectors,
+                "sparseStride=" + sparseStride,
+                "scrollDetection=" + (scrollEstimator != null),
+                "templateIndex=" + (templateIndex != null),
+                "adaptiveStep=" + (maxAdaptiveStep > 0 ? minAdaptiveStep + "-" + maxAdaptiveStep : "off"),
+                "yuvNative=" + yuvNative);
+    }
+
+    /**
+     * Masks the video with masks detected beforehand, no subimage is matched.
+     * The masks refer to the subimages by name, the blurred subimages are taken from the maskers.
+     */
+    public void apply(MaskTimeline timeline) throws Exception {
+        checkMasks(timeline);
+        if (smartReencode) {
+            applySmart(timeline);
+            return;
+        }
+        applyFully(timeline);
+    }
+
+    /**
+     * Fails before anything is encoded when a mask refers to an unknown subimage or does not fit in the frames
+     */
+    private void checkMasks(MaskTimeline timeline) throws Exception {
+        int width;
+        int height;
+        try (Grabber grabber = createGrabber()) {
+            grabber.start();
+            width = grabber.getImageWidth();
+            height = grabber.getImageHeight();
+        }
+        timeline.getMasksByFrame().forEach((frameIndex, masks) -> {
+            for (MaskTimeline.Mask mask : masks) {
+                if (findMasker(mask.getMaskerName()) == null) {
+                    throw new IllegalArgumentException("Unknown subimage " + mask.getMaskerName() +
+                            " in the mask of frame " + frameIndex);
+                }
+                if (mask.getX() + mask.getWidth() > width || mask.getY() + mask.getHeight() > height) {
+                    throw new IllegalArgumentException("The mask of " + mask.getMaskerName() + " in frame " +
+                            frameIndex + " does not fit in the " + width + "x" + height + " frames");
+                }
+            }
+        });
+    }
+
+    private void applyFully(MaskTimeline timeline) throws Exception {
+        try (Grabber grabber = createGrabber()) {
+            if (yuvNative) {
+                grabber.setPixelFormat(AV_PIX_FMT_YUV420P);
+            }
+            grabber.start();
+            encodeFrames(grabber, new ToMat(), 0, Integer.MAX_VALUE, timeline, outputPath, "mp4");
+        }
+    }
+
+    /**
+     * @param output    the path of the masked video, null to only detect the masks
+     * @param timeline  collects the masks of each frame, null if not needed
+     * @param maskers   the subimages to match
+     */
+    private void process(int readAheadStep, Path output, MaskTimeline timeline, List<ImageMasker> maskers)
+            throws Exception {
+        process(readAheadStep, maskers, 0, Integer.MAX_VALUE, output, "mp4", timeline);
+    }
+
+    /**
+     * Masks the frames from startFrame (inclusive) to endFrame (exclusive).
+     *
+     * The blocks are laid out from the start of the video whatever the range. The range is widened to whole blocks
+     * and the read ahead frame before the first block is matched first, the frames outside the range are matched
+     * but not recorded. This way every frame sees the same read ahead frames as in a pass over the whole video.
+     * The adaptive step and the masker schedule are only used over the whole video, the blocks of a range must not
+     * depend on the frames before it.
+     */
+    private void process(int readAheadStep, List<ImageMasker> maskers, int startFrame, int endFrame,
+                         Path output, String format, MaskTimeline timeline) throws Exception {
+        try (Grabber grabber = createGrabber()) {
+            if (yuvNative) {
+                grabber.setPixelFormat(AV_PIX_FMT_YUV420P);
+            }
+            if (motionVectors) {
+                grabber.setVideoOption(MotionVectors.DECODER_FLAGS, MotionVectors.EXPORT_MOTION_VECTORS);
+            }
+            grabber.start();
+            boolean wholeVideo = startFrame == 0 && endFrame == Integer.MAX_VALUE;
+            // The cached subimages are detected apart from the others, their matches must not depend on them
+            AdaptiveStep adaptiveStep = maxAdaptiveStep > 0 && wholeVideo && detectionCache == null ?
+                    new AdaptiveStep(minAdaptiveStep, maxAdaptiveStep, readAheadStep) : null;
+            int maxStep = adaptiveStep != null ? adaptiveStep.getMaxStep() : readAheadStep;
+            MaskerSchedule schedule = scheduleLatency > 0 && wholeVideo && detectionCache == null ?
+                    new MaskerSchedule(maskers, scheduleLatency) : null;
+            // Room for the blocks queued in the pipeline plus the ones being decoded and encoded
+            int bufferedBlocks = pipelineDepth + 2;
+            try (FFmpegFrameRecorder recorder = output != null ? createRecorder(grabber, output, format) : null;
+                 FrameRingBuffer frameBuffer = new FrameRingBuffer(maxStep * bufferedBlocks)) {
+                if (recorder != null) {
+                    recorder.start();
+                }
+                // Each segment is processed on its own thread, the setting belongs to the run
+                boolean detectOnly = recorder == null;
+
+                int firstBlockFrame = (startFrame / readAheadStep) * readAheadStep;
+                int lastBlockEnd = endFrame == Integer.MAX_VALUE ? endFrame :
+                        ((endFrame + readAheadStep - 1) / readAheadStep) * readAheadStep;
+                BlockReader blockReader = new BlockReader(grabber, frameBuffer, readAheadStep, adaptiveStep,
+                        yuvNative, firstBlockFrame, lastBlockEnd, motionVectors ? new MotionVectors() : null);
+                BlockWriter blockWriter = new BlockWriter(recorder, timeline, frameBuffer,
+                        blockReader.getTotalFrames(), yuvNative, firstBlockFrame, startFrame, endFrame);
+
+                // Start with no triggered matchers and no previous matching points, unless a block comes before
+                ProcessedFrame initialReadAheadFrame = new ProcessedFrame(null, new HashMap<>(), null, null);
+                if (firstBlockFrame > 0) {
+                    Mat warmUpFrame = blockReader.readWarmUpFrame(firstBlockFrame - 1);
+                    if (warmUpFrame != null) {
+                        initialReadAheadFrame = processFrame(warmUpFrame, maskers, new HashMap<>(), null, null,
+                                true);
+                        warmUpFrame.release();
                     }
+                }
 
-                    //Matches that have not changed since previous run do not need to be matched again
-                    for (ImageMasker imageMasker : allSubImageMaskers) {
-                        if (previousReadAheadFrame.triggeredMaskers.containsKey(imageMasker) &&
-                                editedReadAheadFrame.triggeredMaskers.containsKey(imageMasker) &&
-                                samePoints(previousReadAheadFrame.triggeredMaskers.get(imageMasker),
-                                        editedReadAheadFrame.triggeredMaskers.get(imageMasker))) {
-                            reusableMatches.put(imageMasker, previousReadAheadFrame.triggeredMaskers.get(imageMasker));
+                if (pipelineDepth > 0) {
+                    runPipelined(blockReader, blockWriter, maskers, initialReadAheadFrame, adaptiveStep, schedule,
+                            detectOnly);
+                } else {
+                    runSequential(blockReader, blockWriter, maskers, initialReadAheadFrame, adaptiveStep, schedule,
+                            detectOnly);
+                }
+                if (adaptiveStep != null) {
+                    adaptiveStep.logSummary();
+                }
+                if (schedule != null) {
+                    schedule.logSummary();
+                }
+            }
+        }
+    }
+
+    private void runSegments(int readAheadStep) throws Exception {
+        KeyframeIndex keyframeIndex = KeyframeIndex.scan(inputPath);
+        List<KeyframeIndex.Segment> segments = keyframeIndex.split(segmentThreads);
+        log.info("Masking {} segments on {} threads", segments.size(), segmentThreads);
+        if (segments.size() <= 1) {
+            process(readAheadStep, outputPath, null, allSubImageMaskers);
+            return;
+        }
+
+        ExecutorService segmentPool = Executors.newFixedThreadPool(segmentThreads);
+        List<Path> parts = new ArrayList<>();
+        try {
+            List<Future<?>> pendingSegments = new ArrayList<>();
+            for (KeyframeIndex.Segment segment : segments) {
+                Path part = createPart(parts);
+                pendingSegments.add(segmentPool.submit(() -> {
+                    process(readAheadStep, allSubImageMaskers, segment.startFrame, segment.endFrame,
+                            part, StreamCopy.SEGMENT_FORMAT, null);
+                    return null;
+                }));
+            }
+            for (Future<?> pendingSegment : pendingSegments) {
+                pendingSegment.get();
+            }
+            StreamCopy.concat(parts, outputPath);
+        } finally {
+            segmentPool.shutdownNow();
+            segmentPool.awaitTermination(1, TimeUnit.MINUTES);
+            ImageMasker.releaseIdleMatchBuffers();
+            for (Path part : parts) {
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+
+    private void resetTileCounters() {
+        scannedTiles.set(0);
+        skippedTiles.set(0);
+        trackedMatches.set(0);
+        lostTracks.set(0);
+        scrolledFrames.set(0);
+        shiftedMatches.set(0);
+        failedShifts.set(0);
+        indexedSearches.set(0);
+        verifiedCandidates.set(0);
+        detectionCacheHits.set(0);
+    }
+
+    private void logTileCounters() {
+        if (dirtyTileSize > 0 || motionVectors) {
+            log.info("Dirty tiles: {} scanned, {} skipped", scannedTiles.get(), skippedTiles.get());
+        }
+        long prefilteredPositions = allSubImageMaskers.stream().mapToLong(ImageMasker::getPrefilteredPositions).sum();
+        if (prefilteredPositions > 0) {
+            long rejectedPositions = allSubImageMaskers.stream().mapToLong(ImageMasker::getRejectedPositions).sum();
+            long prefilterMs = allSubImageMaskers.stream().mapToLong(ImageMasker::getPrefilterNanos).sum() / 1000000;
+            log.info("Pre-filter: {}% of the positions rejected, {}x fewer positions matched, {} ms spent filtering",
+                    String.format("%.1f", 100.0 * rejectedPositions / prefilteredPositions),
+                    String.format("%.2f", (double) prefilteredPositions /
+                            Math.max(1, prefilteredPositions - rejectedPositions)),
+                    prefilterMs);
+        }
+        if (trackingRadius > 0) {
+            log.info("Tracking: {} matches tracked, {} full searches after a lost match",
+                    trackedMatches.get(), lostTracks.get());
+        }
+        if (scrollEstimator != null) {
+            log.info("Scrolling: {} frames scrolled, {} matches moved, {} full searches after a failed move",
+                    scrolledFrames.get(), shiftedMatches.get(), failedShifts.get());
+        }
+        if (templateIndex != null) {
+            log.info("Template index: {} full searches replaced by {} candidates verified",
+                    indexedSearches.get(), verifiedCandidates.get());
+        }
+    }
+
+    private void applySmart(MaskTimeline timeline) throws Exception {
+        KeyframeIndex keyframeIndex = KeyframeIndex.scan(inputPath);
+        if (keyframeIndex.hasOpenGops()) {
+            log.warn("Smart re-encode: the input has open GOPs, the whole video is re-encoded");
+            applyFully(timeline);
+            return;
+        }
+        List<KeyframeIndex.Segment> segments = keyframeIndex.segments(timeline);
+        int dirtyFrames = segments.stream().filter(segment -> segment.dirty)
+                .mapToInt(KeyframeIndex.Segment::getFrameCount).sum();
+        log.info("Smart re-encode: {} masked frames, {} of {} frames in {} dirty GOPs",
+                timeline.getMaskedFrameCount(), dirtyFrames, keyframeIndex.getTotalFrames(),
+                segments.stream().filter(segment -> segment.dirty).count());
+
+        if (dirtyFrames == 0) {
+            StreamCopy.concat(Collections.singletonList(inputPath), outputPath);
+            return;
+        }
+
+        List<Path> parts = new ArrayList<>();
+        try {
+            writeSegments(segments, timeline, keyframeIndex.getTotalFrames(), parts);
+            if (!StreamCopy.haveSameParameters(parts)) {
+                log.warn("Smart re-encode: the re-encoded GOPs do not have the parameters of the input, " +
+                        "the whole video is re-encoded");
+                applyFully(timeline);
+                return;
+            }
+            StreamCopy.concat(parts, outputPath);
+        } finally {
+            for (Path part : parts) {
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+
+    /**
+     * Reads the packets of the input once. The packets of the clean segments are copied, the dirty segments are
+     * decoded with a second grabber, positioned on their first keyframe, and encoded with their masks.
+     */
+    private void writeSegments(List<KeyframeIndex.Segment> segments, MaskTimeline timeline, int totalFrames,
+                               List<Path> parts) throws Exception {
+        ToMat frameConverter = new ToMat();
+        try (Grabber frameGrabber = createGrabber()) {
+            if (yuvNative) {
+                frameGrabber.setPixelFormat(AV_PIX_FMT_YUV420P);
+            }
+            frameGrabber.start();
+
+            FFmpegFrameGrabber packetGrabber = new FFmpegFrameGrabber(inputPath.toFile());
+            packetGrabber.start();
+            FFmpegFrameRecorder copyRecorder = null;
+            try {
+                int videoStream = StreamCopy.findVideoStream(packetGrabber.getFormatContext());
+                Iterator<KeyframeIndex.Segment> remainingSegments = segments.iterator();
+                KeyframeIndex.Segment segment = null;
+                int frameIndex = 0;
+                AVPacket packet;
+                while ((packet = packetGrabber.grabPacket()) != null) {
+                    if (packet.stream_index() == videoStream) {
+                        if ((segment == null || frameIndex >= segment.endFrame) && remainingSegments.hasNext()) {
+                            StreamCopy.closeRecorder(copyRecorder);
+                            copyRecorder = null;
+                            segment = remainingSegments.next();
+                            Path part = createPart(parts);
+                            if (segment.dirty) {
+                                encodeFrames(frameGrabber, frameConverter, segment.startFrame, segment.endFrame,
+                                        timeline, part, StreamCopy.SEGMENT_FORMAT);
+                            } else {
+                                copyRecorder = StreamCopy.createCopyRecorder(packetGrabber, part,
+                                        StreamCopy.SEGMENT_FORMAT);
+                                copyRecorder.start(packetGrabber.getFormatContext());
+                            }
+                            log.debug("[{}/{}] {} {} frames", segment.endFrame, totalFrames,
+                                    segment.dirty ? "Re-encoding" : "Copying", segment.getFrameCount());
+                        }
+                        if (copyRecorder != null) {
+                            copyRecorder.recordPacket(packet);
                         }
+                        frameIndex++;
                     }
+                    av_packet_unref(packet);
+                }
+            } finally {
+                StreamCopy.closeRecorder(copyRecorder);
+                packetGrabber.close();
+            }
+        }
+    }
 
-                    //Mask normal frames
-                    for (int i = 0; i < normalFramesToRead; i++) {
-                        ProcessedFrame editedNormalFrame = processFrame(sequentialGrabber.grabImage(), activeImageMaskers, reusableMatches);
-                        recorder.record(editedNormalFrame.frame);
-                        currentFrameIndex += 1;
+    private Path createPart(List<Path> parts) throws Exception {
+        Path outputDir = outputPath.toAbsolutePath().getParent();
+        Path part = Files.createTempFile(outputDir, outputPath.getFileName() + ".", ".part.ts");
+        parts.add(part);
+        return part;
+    }
+
+    /**
+     * Encodes the frames from startFrame (inclusive) to endFrame (exclusive) or the end of the video,
+     * masked with the masks of the timeline
+     */
+    private void encodeFrames(Grabber grabber, ToMat frameConverter, int startFrame, int endFrame,
+                              MaskTimeline timeline, Path output, String format) throws Exception {
+        if (grabber.getFrameNumber() != startFrame) {
+            grabber.setFrameNumber(startFrame);
+        }
+        try (FFmpegFrameRecorder recorder = createRecorder(grabber, output, format)) {
+            recorder.start();
+            for (int frameIndex = startFrame; frameIndex < endFrame; frameIndex++) {
+                Frame frame = grabber.grabImage();
+                if (frame == null) {
+                    break;
+                }
+                List<MaskTimeline.Mask> masks = timeline.getMasks(frameIndex);
+                if (yuvNative) {
+                    try (Mat yuvFrame = wrapI420(frame)) {
+                        applyMasks(masks, yuvFrame);
                     }
+                    recorder.record(frame, AV_PIX_FMT_YUV420P);
+                } else {
+                    Mat mat = frameConverter.convert(frame);
+                    applyMasks(masks, mat);
+                    recorder.record(frameConverter.convert(mat));
+                }
+            }
+        }
+    }
 
-                    //Record the read ahead frame
-                    recorder.record(editedReadAheadFrame.frame);
-                    currentFrameIndex += 1;
+    private void applyMasks(List<MaskTimeline.Mask> masks, Mat frame) {
+        for (MaskTimeline.Mask mask : masks) {
+            ImageMasker masker = findMasker(mask.getMaskerName());
+            try (opencv_core.Rect rect = new opencv_core.Rect(mask.getX(), mask.getY(),
+                    mask.getWidth(), mask.getHeight())) {
+                if (yuvNative) {
+                    masker.blurRectI420(rect, frame);
+                } else {
+                    masker.blurRect(rect, frame);
+                }
+            }
+        }
+    }
 
-                    //Align the normal grabbers
-                    sequentialGrabber.grabImage();
+    private ImageMasker findMasker(String name) {
+        for (ImageMasker masker : allSubImageMaskers) {
+            if (masker.getName().equals(name)) {
+                return masker;
+            }
+        }
+        return null;
+    }
+
+    private void runSequential(BlockReader blockReader, BlockWriter blockWriter, List<ImageMasker> maskers,
+                               ProcessedFrame initialReadAheadFrame, AdaptiveStep adaptiveStep,
+                               MaskerSchedule schedule, boolean detectOnly) throws Exception {
+        ProcessedFrame previousReadAheadFrame = initialReadAheadFrame;
 
-                    //Store the previous frame
-                    previousReadAheadFrame.dispose();
-                    previousReadAheadFrame = editedReadAheadFrame;
+        long readAheadIndex = 0;
+        FrameBlock block;
+        while ((block = blockReader.readBlock()) != null) {
+            ProcessedFrame editedReadAheadFrame = processReadAheadFrame(block, maskers, schedule, readAheadIndex,
+                    detectOnly);
+            observeMatches(adaptiveStep, readAheadIndex++, previousReadAheadFrame, editedReadAheadFrame);
+            MaskedBlock maskedBlock = maskBlock(block, maskers, previousReadAheadFrame, editedReadAheadFrame,
+                    detectOnly);
+            blockWriter.write(maskedBlock);
+            previousReadAheadFrame = editedReadAheadFrame;
+        }
+    }
 
-                    long timeAfter = System.nanoTime();
-                    long durationMs = (timeAfter - timeBefore) / 1000000;
-                    System.out.printf("["+currentFrameIndex+"/"+totalFrames+"] Processing speed: %d ms per frame\n", durationMs/framesToReadAhead);
+    private void runPipelined(BlockReader blockReader, BlockWriter blockWriter, List<ImageMasker> maskers,
+                              ProcessedFrame initialReadAheadFrame, AdaptiveStep adaptiveStep,
+                              MaskerSchedule schedule, boolean detectOnly) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(workerThreads);
+        ExecutorService encoder = Executors.newSingleThreadExecutor();
+        BlockingQueue<CompletableFuture<MaskedBlock>> encodingQueue = new ArrayBlockingQueue<>(pipelineDepth);
+        try {
+            Future<?> encoding = encoder.submit(() -> {
+                try {
+                    while (true) {
+                        MaskedBlock maskedBlock = encodingQueue.take().get();
+                        if (maskedBlock == null) {
+                            return null;
+                        }
+                        blockWriter.write(maskedBlock);
+                    }
+                } catch (Exception ex) {
+                    blockWriter.abort();
+                    if (adaptiveStep != null) {
+                        adaptiveStep.cancel();
+                    }
+                    throw ex;
                 }
+            });
+
+            CompletableFuture<ProcessedFrame> previousReadAheadFrame =
+                    CompletableFuture.completedFuture(initialReadAheadFrame);
+
+            long readAheadIndex = 0;
+            FrameBlock block;
+            while ((block = blockReader.readBlock()) != null) {
+                FrameBlock currentBlock = block;
+                long currentIndex = readAheadIndex++;
+                // The schedule of a read ahead frame depends on the matches of the read ahead frame before
+                CompletableFuture<ProcessedFrame> editedReadAheadFrame = schedule == null ?
+                        CompletableFuture.supplyAsync(
+                                () -> processReadAheadFrame(currentBlock, maskers, null, currentIndex, detectOnly),
+                                workers) :
+                        previousReadAheadFrame.thenApplyAsync(
+                                (previous) -> processReadAheadFrame(currentBlock, maskers, schedule, currentIndex,
+                                        detectOnly), workers);
+                // The decoder waits for this to pick the step of the next block, without waiting for the masking
+                CompletableFuture<Void> observedMatches = previousReadAheadFrame.thenAcceptBoth(editedReadAheadFrame,
+                        (previous, next) -> observeMatches(adaptiveStep, currentIndex, previous, next));
+                // The matches of the previous read ahead frame are disposed once the block is recorded
+                CompletableFuture<MaskedBlock> maskedBlock = previousReadAheadFrame.thenCombineAsync(
+                        editedReadAheadFrame,
+                        (previous, next) -> maskBlock(currentBlock, maskers, previous, next, detectOnly), workers)
+                        .thenCombine(observedMatches, (masked, observed) -> masked);
+                enqueue(encodingQueue, maskedBlock, encoding);
+                previousReadAheadFrame = editedReadAheadFrame;
+            }
+
+            // Signal the end of the stream
+            enqueue(encodingQueue, CompletableFuture.completedFuture(null), encoding);
+            encoding.get();
+        } finally {
+            workers.shutdownNow();
+            encoder.shutdownNow();
+            // The frames are owned by the ring buffer, wait for the stages to let go of them
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+            encoder.awaitTermination(1, TimeUnit.MINUTES);
+            ImageMasker.releaseIdleMatchBuffers();
+        }
+    }
+
+    private static <T> void enqueue(BlockingQueue<T> queue, T item, Future<?> consumer) throws Exception {
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            if (consumer.isDone()) {
+                consumer.get();
+                throw new IllegalStateException("The encoder stopped before the end of the stream");
             }
         }
     }
 
+    private static void observeMatches(AdaptiveStep adaptiveStep, long blockIndex,
+                                       ProcessedFrame previousReadAheadFrame, ProcessedFrame editedReadAheadFrame) {
+        if (adaptiveStep != null) {
+            adaptiveStep.observe(blockIndex, !sameMatches(previousReadAheadFrame.triggeredMaskers,
+                    editedReadAheadFrame.triggeredMaskers));
+        }
+    }
+
+    private static boolean sameMatches(Map<ImageMasker, List<opencv_core.Point>> previousMatches,
+                                       Map<ImageMasker, List<opencv_core.Point>> matches) {
+        if (!previousMatches.keySet().equals(matches.keySet())) {
+            return false;
+        }
+        for (Map.Entry<ImageMasker, List<opencv_core.Point>> entry : matches.entrySet()) {
+            if (!samePoints(previousMatches.get(entry.getKey()), entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param schedule picks the maskers searched in the read ahead frame, null to search all of them
+     * @param readAheadIndex the number of read ahead frames before this one
+     * @param detectOnly true to only match the subimages, without masking the frame
+     */
+    private ProcessedFrame processReadAheadFrame(FrameBlock block, List<ImageMasker> maskers,
+                                                 MaskerSchedule schedule, long readAheadIndex, boolean detectOnly) {
+        if (schedule == null) {
+            return processFrame(block.readAheadFrame, maskers, new HashMap<>(), null, null, detectOnly);
+        }
+        List<ImageMasker> searchedMaskers = schedule.select(readAheadIndex, maskers);
+        ProcessedFrame editedReadAheadFrame = processFrame(block.readAheadFrame, searchedMaskers, new HashMap<>(),
+                null, null, detectOnly);
+        schedule.record(readAheadIndex, searchedMaskers, editedReadAheadFrame.triggeredMaskers.keySet());
+        for (ImageMasker masker : maskers) {
+            if (!searchedMaskers.contains(masker)) {
+                editedReadAheadFrame.skippedMaskers.add(masker);
+            }
+        }
+        return editedReadAheadFrame;
+    }
+
+    private MaskedBlock maskBlock(FrameBlock block, List<ImageMasker> maskers, ProcessedFrame previousReadAheadFrame,
+                                  ProcessedFrame editedReadAheadFrame, boolean detectOnly) {
+        //Compute active maskers
+        List<ImageMasker> activeImageMaskers = new ArrayList<>();
+        for (ImageMasker imageMasker : maskers) {
+            if (previousReadAheadFrame.triggeredMaskers.containsKey(imageMasker) ||
+                    editedReadAheadFrame.triggeredMaskers.containsKey(imageMasker)) {
+                activeImageMaskers.add(imageMasker);
+            }
+        }
+
+        //Matches that have not changed since previous run do not need to be matched again
+        HashMap<ImageMasker, List<opencv_core.Point>> reusableMatches = new HashMap<>();
+        for (ImageMasker imageMasker : maskers) {
+            if (previousReadAheadFrame.triggeredMaskers.containsKey(imageMasker) &&
+                    editedReadAheadFrame.triggeredMaskers.containsKey(imageMasker) &&
+                    samePoints(previousReadAheadFrame.triggeredMaskers.get(imageMasker),
+                            editedReadAheadFrame.triggeredMaskers.get(imageMasker))) {
+                reusableMatches.put(imageMasker, previousReadAheadFrame.triggeredMaskers.get(imageMasker));
+            }
+        }
+
+        //Mask normal frames, the previous read ahead frame is the frame just before the block
+        List<Mat> maskedFrames = new ArrayList<>();
+        List<Map<ImageMasker, List<opencv_core.Point>>> frameMatches = new ArrayList<>();
+        ProcessedFrame previousFrame = previousReadAheadFrame;
+        // A subimage skipped by the schedule may have been there before the block, the first frame searches it all
+        if (activeImageMaskers.stream().anyMatch(previousReadAheadFrame.skippedMaskers::contains)) {
+            previousFrame = null;
+        }
+        for (int i = 0; i < block.normalFrames.size(); i++) {
+            boolean isRefreshFrame = refreshInterval > 0 && (i + 1) % refreshInterval == 0;
+            ProcessedFrame editedNormalFrame = processFrame(block.normalFrames.get(i), activeImageMaskers,
+                    reusableMatches, isRefreshFrame ? null : previousFrame, block.normalFrameMotion.get(i),
+                    detectOnly);
+            maskedFrames.add(editedNormalFrame.frame);
+            frameMatches.add(editedNormalFrame.triggeredMaskers);
+            if (previousFrame != null && previousFrame != previousReadAheadFrame) {
+                previousFrame.releaseScrollImage();
+            }
+            previousFrame = editedNormalFrame;
+        }
+        if (previousFrame != null && previousFrame != previousReadAheadFrame) {
+            previousFrame.releaseScrollImage();
+        }
+
+        //The read ahead frame closes the block
+        maskedFrames.add(editedReadAheadFrame.frame);
+        frameMatches.add(editedReadAheadFrame.triggeredMaskers);
+        return new MaskedBlock(maskedFrames, frameMatches, previousReadAheadFrame);
+    }
+
     private static boolean samePoints(List<opencv_core.Point> prevPoints, List<opencv_core.Point> currentPoints) {
         if (prevPoints.size() != currentPoints.size()) {
             return false;
@@ -139,50 +1148,440 @@ public class VideoMasker implements AutoCloseable {
         return true;
     }
 
-    private ProcessedFrame processFrame(Frame frame, List<ImageMasker> subImageMaskers,
+    /**
+     * @param previousFrame the frame just before this one, used to only search near the previous matches or in
+     *                      the changed tiles. Null to search the whole frame.
+     * @param motionChanges the macroblocks changed since the previous frame according to the motion vectors,
+     *                      null if not known
+     * @param detectOnly true to only match the subimages, without masking the frame
+     */
+    private ProcessedFrame processFrame(Mat mat, List<ImageMasker> subImageMaskers,
                                         HashMap<ImageMasker,
-                                        List<opencv_core.Point>> reusableMatches) throws FrameGrabber.Exception {
-        String reusingMatches = reusableMatches.keySet().stream().map(ImageMasker::getName)
-                .collect(Collectors.joining(", ", "[", "]"));
-        System.out.println("activeImageMaskers.size() = " + subImageMaskers.size() + ", reusing matches: "+reusingMatches);
+                                        List<opencv_core.Point>> reusableMatches,
+                                        ProcessedFrame previousFrame,
+                                        TileHashes.Changes motionChanges,
+                                        boolean detectOnly) {
+        if (log.isDebugEnabled()) {
+            log.debug("activeImageMaskers.size() = {}, reusing matches: {}", subImageMaskers.size(),
+                    reusableMatches.keySet().stream().map(ImageMasker::getName)
+                            .collect(Collectors.joining(", ", "[", "]")));
+        }
 
-        Map<ImageMasker, List<opencv_core.Point>> matchedMaskers = new HashMap<>();
-        Mat mat = FRAME_CONVERTER.convert(frame);
+        // Keeps the order of the maskers
+        Map<ImageMasker, List<opencv_core.Point>> matchedMaskers = new LinkedHashMap<>();
+
+        // All the maskers match against the same unmasked frame
+        TileHashes tileHashes = null;
+        Mat scrollImage = null;
+        try (FrameContext frameContext = yuvNative ? FrameContext.ofI420(mat) : new FrameContext(mat)) {
+            ScrollEstimator.Shift shift = null;
+            if (scrollEstimator != null) {
+                scrollImage = ScrollEstimator.prepare(frameContext);
+                if (previousFrame != null && previousFrame.scrollImage != null) {
+                    shift = scrollEstimator.estimate(previousFrame.scrollImage, scrollImage);
+                    if (shift != null && shift.isZero()) {
+                        shift = null;
+                    }
+                    if (shift != null) {
+                        scrolledFrames.incrementAndGet();
+                    }
+                }
+            }
+            ScrollEstimator.Shift frameShift = shift;
 
+            // The index is looked up once for all the maskers searching the whole frame
+            Map<ImageMasker, List<opencv_core.Point>> candidates = previousFrame == null && templateIndex != null ?
+                    templateIndex.findCandidates(frameContext) : Collections.emptyMap();
+
+            int tileSize = motionVectors ? MotionVectors.MACROBLOCK_SIZE : dirtyTileSize;
+            if (tileSize > 0) {
+                tileHashes = frameContext.getTileHashes(tileSize);
+                if (previousFrame != null && shift == null) {
+                    // The pixels decide, the motion vectors only tell which macroblocks surely changed
+                    TileHashes.Changes changedTiles = tileHashes.changedSince(previousFrame.tileHashes, motionChanges);
+                    frameContext.setChangedTiles(changedTiles);
+                    countTiles(changedTiles);
+                }
+            }
+            if (shift != null) {
+                // The scrolled content is compared once moved back, not in place
+                frameContext.setChangedTiles(scrollEstimator.changedTiles(previousFrame.scrollImage, scrollImage,
+                        shift, frameContext.getWidth(), frameContext.getHeight()));
+            }
+
+            // The maskers are independent, they can be matched concurrently
+            Map<ImageMasker, Future<List<opencv_core.Point>>> pendingMatches = new HashMap<>();
+            if (maskerPool != null) {
+                for (ImageMasker masker : subImageMaskers) {
+                    if (!reusableMatches.containsKey(masker)) {
+                        pendingMatches.put(masker, maskerPool.submit(
+                                () -> findMatchingPoints(masker, frameContext, previousFrame, frameShift,
+                                        candidates.get(masker))));
+                    }
+                }
+            }
+
+            for (ImageMasker masker : subImageMaskers) {
+                List<opencv_core.Point> matchingPoints;
+                if (reusableMatches.containsKey(masker)) {
+                    matchingPoints = reusableMatches.get(masker);
+                } else if (pendingMatches.containsKey(masker)) {
+                    matchingPoints = awaitMatchingPoints(masker, pendingMatches.get(masker));
+                } else {
+                    matchingPoints = findMatchingPoints(masker, frameContext, previousFrame, frameShift,
+                            candidates.get(masker));
+                }
+
+                if (matchingPoints.size() > 0) {
+                    matchedMaskers.put(masker, matchingPoints);
+                }
+            }
+            candidates.values().forEach(points -> points.forEach(opencv_core.Point::close));
+        }
+
+        // Blur in the order of the maskers so the output does not depend on the scheduling
         for (ImageMasker masker : subImageMaskers) {
-            List<opencv_core.Point> matchingPoints;
-            if (reusableMatches.containsKey(masker)) {
-                matchingPoints = reusableMatches.get(masker);
+            if (detectOnly || !matchedMaskers.containsKey(masker)) {
+                continue;
+            }
+            if (yuvNative) {
+                masker.blurPointsI420(matchedMaskers.get(masker), mat);
             } else {
-                matchingPoints = masker.findMatchingPoints(mat);
+                masker.blurPoints(matchedMaskers.get(masker), mat);
             }
-            masker.blurPoints(matchingPoints, mat);
+        }
 
-            if (matchingPoints.size() > 0) {
-                matchedMaskers.put(masker, matchingPoints);
+        return new ProcessedFrame(mat, matchedMaskers, tileHashes, scrollImage);
+    }
+
+    /**
+     * @param shift how far the frame scrolled since the previous frame, null if it did not
+     * @param candidates where the template index found the subimage may be, null if it must be searched in the
+     *                   whole frame
+     */
+    private List<opencv_core.Point> findMatchingPoints(ImageMasker masker, FrameContext frameContext,
+                                                       ProcessedFrame previousFrame, ScrollEstimator.Shift shift,
+                                                       List<opencv_core.Point> candidates) {
+        if (previousFrame == null && candidates != null) {
+            indexedSearches.incrementAndGet();
+            verifiedCandidates.addAndGet(candidates.size());
+            return masker.verifyCandidates(frameContext, candidates, TemplateIndex.CANDIDATE_RADIUS);
+        }
+        if (previousFrame == null) {
+            return masker.findMatchingPoints(frameContext);
+        }
+
+        List<opencv_core.Point> previousPoints =
+                previousFrame.triggeredMaskers.getOrDefault(masker, Collections.emptyList());
+        if (shift != null && !previousPoints.isEmpty()) {
+            List<opencv_core.Point> shiftedPoints = masker.findShiftedMatchingPoints(frameContext, previousPoints,
+                    shift, scrollEstimator.getRadius());
+            if (shiftedPoints != null) {
+                shiftedMatches.addAndGet(previousPoints.size());
+                return shiftedPoints;
             }
+            failedShifts.incrementAndGet();
+            return masker.findMatchingPoints(frameContext);
+        }
+        if (frameContext.getChangedTiles() != null) {
+            return masker.findChangedMatchingPoints(frameContext, previousPoints);
         }
 
-        Frame editedFrame = FRAME_CONVERTER.convert(mat);
+        if (trackingRadius > 0 && !previousPoints.isEmpty()) {
+            List<opencv_core.Point> trackedPoints =
+                    masker.trackMatchingPoints(frameContext, previousPoints, trackingRadius);
+            if (trackedPoints != null) {
+                trackedMatches.addAndGet(previousPoints.size());
+                return trackedPoints;
+            }
+            lostTracks.incrementAndGet();
+        }
+        return masker.findMatchingPoints(frameContext);
+    }
+
+    private static List<opencv_core.Point> awaitMatchingPoints(ImageMasker masker,
+                                                               Future<List<opencv_core.Point>> pendingMatch) {
+        try {
+            return pendingMatch.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while matching " + masker.getName(), ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Could not match " + masker.getName(), ex.getCause());
+        }
+    }
 
-        return new ProcessedFrame(editedFrame, matchedMaskers);
+    private void countTiles(TileHashes.Changes changedTiles) {
+        if (changedTiles != null) {
+            scannedTiles.addAndGet(changedTiles.getChangedCount());
+            skippedTiles.addAndGet(changedTiles.getUnchangedCount());
+        }
     }
 
     private static class ProcessedFrame {
-        private final Frame frame;
+        private final Mat frame;
         private final Map<ImageMasker, List<opencv_core.Point>> triggeredMaskers;
+        private final TileHashes tileHashes;
+        private Mat scrollImage;
+        /**
+         * The maskers the schedule did not search in this read ahead frame
+         */
+        private final List<ImageMasker> skippedMaskers = new ArrayList<>();
 
-        ProcessedFrame(Frame frame, Map<ImageMasker, List<opencv_core.Point>> triggeredMaskers) {
+        ProcessedFrame(Mat frame, Map<ImageMasker, List<opencv_core.Point>> triggeredMaskers,
+                       TileHashes tileHashes, Mat scrollImage) {
             this.frame = frame;
             this.triggeredMaskers = triggeredMaskers;
+            this.tileHashes = tileHashes;
+            this.scrollImage = scrollImage;
+        }
+
+        /**
+         * The scroll image is only needed by the frame after this one
+         */
+        void releaseScrollImage() {
+            if (scrollImage != null) {
+                scrollImage.release();
+                scrollImage = null;
+            }
         }
 
         void dispose() {
             this.triggeredMaskers.values().stream().flatMap(Collection::stream).forEach(Pointer::close);
+            releaseScrollImage();
         }
     }
 
-    private static final ToMat FRAME_CONVERTER = new ToMat();
+    /**
+     * A run of consecutive frames, the last one being the read ahead frame.
+     * The frames live in the ring buffer, they do not share memory with the grabber.
+     */
+    private static class FrameBlock {
+        private final List<Mat> normalFrames;
+        private final List<TileHashes.Changes> normalFrameMotion;
+        private final Mat readAheadFrame;
+
+        FrameBlock(List<Mat> normalFrames, List<TileHashes.Changes> normalFrameMotion, Mat readAheadFrame) {
+            this.normalFrames = normalFrames;
+            this.normalFrameMotion = normalFrameMotion;
+            this.readAheadFrame = readAheadFrame;
+        }
+    }
+
+    /**
+     * The frames of a block ready to be recorded. The previous read ahead frame can only be disposed once
+     * the block is recorded because its matches may have been reused by the block.
+     */
+    private static class MaskedBlock {
+        private final List<Mat> frames;
+        private final List<Map<ImageMasker, List<opencv_core.Point>>> frameMatches;
+        private final ProcessedFrame previousReadAheadFrame;
+
+        MaskedBlock(List<Mat> frames, List<Map<ImageMasker, List<opencv_core.Point>>> frameMatches,
+                    ProcessedFrame previousReadAheadFrame) {
+            this.frames = frames;
+            this.frameMatches = frameMatches;
+            this.previousReadAheadFrame = previousReadAheadFrame;
+        }
+    }
+
+    /**
+     * Decodes the video in blocks using a single grabber. The read ahead frame is the last frame of the block,
+     * the frames before it are kept in the ring buffer until the block is recorded.
+     * Not thread safe, meant to be used by the decoder stage only.
+     */
+    private static class BlockReader {
+        private final Grabber grabber;
+        private final FrameRingBuffer frameBuffer;
+        private final int readAheadStep;
+        private final AdaptiveStep adaptiveStep;
+        private final int totalFrames;
+        private final ToMat frameConverter;
+        private final boolean yuvNative;
+        private final MotionVectors motionVectors;
+        private int currentFrameIndex;
+
+        /**
+         * @param adaptiveStep picks the step of each block, null to always read readAheadStep frames
+         * @param firstFrame the index of the first frame of the first block
+         * @param endFrame the index of the frame after the last block, read until the end of the video if larger
+         * @param motionVectors reads the changed macroblocks of each frame, null to not read them
+         */
+        BlockReader(Grabber grabber, FrameRingBuffer frameBuffer, int readAheadStep, AdaptiveStep adaptiveStep,
+                    boolean yuvNative, int firstFrame, int endFrame, MotionVectors motionVectors) {
+            this.grabber = grabber;
+            this.frameBuffer = frameBuffer;
+            this.readAheadStep = readAheadStep;
+            this.adaptiveStep = adaptiveStep;
+            this.totalFrames = Math.min(grabber.getLengthInFrames(), endFrame);
+            this.frameConverter = new ToMat();
+            this.yuvNative = yuvNative;
+            this.currentFrameIndex = firstFrame;
+            this.motionVectors = motionVectors;
+        }
+
+        /**
+         * Seeks to the frame, which must come just before the first block. The frame is not kept in the ring buffer.
+         *
+         * @return a copy of the frame, null if it cannot be read
+         */
+        Mat readWarmUpFrame(int frameIndex) throws FrameGrabber.Exception {
+            grabber.setFrameNumber(frameIndex);
+            Frame frame = grabber.grabImage();
+            if (frame == null) {
+                return null;
+            }
+            if (!yuvNative) {
+                return frameConverter.convert(frame).clone();
+            }
+            try (Mat yuvFrame = wrapI420(frame)) {
+                return yuvFrame.clone();
+            }
+        }
+
+        int getTotalFrames() {
+            return totalFrames;
+        }
+
+        FrameBlock readBlock() throws FrameGrabber.Exception, InterruptedException {
+            if (currentFrameIndex >= totalFrames) {
+                return null;
+            }
+
+            // Sync with the grabber index in case some audio frames have been skipped
+            currentFrameIndex = Math.max(currentFrameIndex, grabber.getFrameNumber());
+
+            int step = adaptiveStep != null ? adaptiveStep.nextStep() : readAheadStep;
+            int framesToReadAhead = Math.min(step, totalFrames - currentFrameIndex);
+            List<Mat> frames = new ArrayList<>();
+            List<TileHashes.Changes> frameMotion = new ArrayList<>();
+            for (int i = 0; i < framesToReadAhead; i++) {
+                Frame frame = grabber.grabImage();
+                if (frame == null) {
+                    break;
+                }
+                // The side data only lives until the next grab
+                frameMotion.add(motionVectors != null ? motionVectors.changedMacroblocks(frame) : null);
+                frames.add(bufferFrame(frame));
+            }
+            if (frames.isEmpty()) {
+                return null;
+            }
+
+            currentFrameIndex += frames.size();
+            if (adaptiveStep != null) {
+                adaptiveStep.countFrames(frames.size());
+            }
+            Mat readAheadFrame = frames.remove(frames.size() - 1);
+            frameMotion.remove(frameMotion.size() - 1);
+            return new FrameBlock(frames, frameMotion, readAheadFrame);
+        }
+
+        private Mat bufferFrame(Frame frame) throws InterruptedException {
+            if (!yuvNative) {
+                return frameBuffer.put(frameConverter.convert(frame));
+            }
+
+            // The three planes follow each other in the image buffer
+            try (Mat yuvFrame = wrapI420(frame)) {
+                return frameBuffer.put(yuvFrame);
+            }
+        }
+    }
+
+    /**
+     * Records the masked blocks and collects their masks. Not thread safe, meant to be used by the encoder
+     * stage only.
+     */
+    private static class BlockWriter {
+        private final FFmpegFrameRecorder recorder;
+        private final MaskTimeline timeline;
+        private final FrameRingBuffer frameBuffer;
+        private final int totalFrames;
+        private final ToMat frameConverter;
+        private final boolean yuvNative;
+        private final int startFrame;
+        private final int endFrame;
+        private int currentFrameIndex;
+        private long lastWriteNanos;
+
+        /**
+         * @param recorder null to not record the frames
+         * @param timeline null to not collect the masks
+         * @param firstFrame the index of the first frame of the first block
+         * @param startFrame the first frame to record (inclusive), the frames before it are dropped
+         * @param endFrame the last frame to record (exclusive), the frames after it are dropped
+         */
+        BlockWriter(FFmpegFrameRecorder recorder, MaskTimeline timeline, FrameRingBuffer frameBuffer,
+                    int totalFrames, boolean yuvNative, int firstFrame, int startFrame, int endFrame) {
+            this.recorder = recorder;
+            this.timeline = timeline;
+            this.frameBuffer = frameBuffer;
+            this.yuvNative = yuvNative;
+            this.totalFrames = totalFrames;
+            this.frameConverter = new ToMat();
+            this.startFrame = startFrame;
+            this.endFrame = endFrame;
+            this.currentFrameIndex = firstFrame;
+            this.lastWriteNanos = System.nanoTime();
+        }
+
+        void write(MaskedBlock maskedBlock) throws FrameRecorder.Exception {
+            for (int i = 0; i < maskedBlock.frames.size(); i++) {
+                Mat frame = maskedBlock.frames.get(i);
+                boolean inRange = currentFrameIndex >= startFrame && currentFrameIndex < endFrame;
+                if (inRange && recorder != null) {
+                    record(frame);
+                }
+                if (inRange && timeline != null) {
+                    addMasks(currentFrameIndex, maskedBlock.frameMatches.get(i));
+                }
+                frameBuffer.recycle(frame);
+                currentFrameIndex += 1;
+            }
+
+            //Store the previous frame
+            maskedBlock.previousReadAheadFrame.dispose();
+
+            long timeNow = System.nanoTime();
+            long durationMs = (timeNow - lastWriteNanos) / 1000000;
+            lastWriteNanos = timeNow;
+            System.out.printf("["+currentFrameIndex+"/"+totalFrames+"] Processing speed: %d ms per frame\n",
+                    durationMs/maskedBlock.frames.size());
+        }
+
+        void abort() {
+            frameBuffer.abort();
+        }
+
+        private void record(Mat frame) throws FrameRecorder.Exception {
+            if (yuvNative) {
+                recorder.record(toYuvFrame(frame), AV_PIX_FMT_YUV420P);
+            } else {
+                recorder.record(frameConverter.convert(frame));
+            }
+        }
+
+        private void addMasks(int frameIndex, Map<ImageMasker, List<opencv_core.Point>> matches) {
+            matches.forEach((masker, points) -> {
+                for (opencv_core.Point point : points) {
+                    timeline.add(frameIndex, new MaskTimeline.Mask(masker.getName(), point.x(), point.y(),
+                            masker.getSubImageWidth(), masker.getSubImageHeight()));
+                }
+            });
+        }
+
+        private static Frame toYuvFrame(Mat yuvFrame) {
+            Frame frame = new Frame();
+            frame.imageWidth = yuvFrame.cols();
+            frame.imageHeight = yuvFrame.rows() * 2 / 3;
+            frame.imageDepth = Frame.DEPTH_UBYTE;
+            frame.imageChannels = 1;
+            frame.imageStride = yuvFrame.cols();
+            frame.image = new Buffer[]{yuvFrame.createBuffer()};
+            return frame;
+        }
+    }
 
 
     /**
@@ -190,6 +1589,7 @@ public class VideoMasker implements AutoCloseable {
      */
     private static class Grabber implements AutoCloseable {
         FFmpegFrameGrabber grabber;
+        private boolean yuv;
 
         Grabber(FFmpegFrameGrabber grabber) {
             this.grabber = grabber;
@@ -201,6 +1601,18 @@ public class VideoMasker implements AutoCloseable {
 
         private void start() throws FrameGrabber.Exception {
             grabber.start();
+            if (yuv) {
+                checkYuvFrameSize(grabber.getImageWidth(), grabber.getImageHeight());
+            }
+        }
+
+        private void setPixelFormat(int pixelFormat) {
+            grabber.setPixelFormat(pixelFormat);
+            yuv = pixelFormat == AV_PIX_FMT_YUV420P;
+        }
+
+        private void setVideoOption(String option, String value) {
+            grabber.setVideoOption(option, value);
         }
 
         Frame grabImage() throws FrameGrabber.Exception {
@@ -215,6 +1627,10 @@ public class VideoMasker implements AutoCloseable {
             return grabber.getFrameNumber();
         }
 
+        void setFrameNumber(int frameNumber) throws FrameGrabber.Exception {
+            grabber.setFrameNumber(frameNumber);
+        }
+
         int getImageWidth() {
             return grabber.getImageWidth();
         }
@@ -245,16 +1661,16 @@ public class VideoMasker implements AutoCloseable {
         return Grabber.fromFile(inputPath);
     }
 
-    private FFmpegFrameRecorder createRecorder(Grabber grabber) {
+    private FFmpegFrameRecorder createRecorder(Grabber grabber, Path output, String format) {
         FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
-                outputPath.toFile(),
+                output.toFile(),
                 grabber.getImageWidth(),
                 grabber.getImageHeight(),
                 0
         );
         recorder.setVideoCodec(AV_CODEC_ID_H264);
         recorder.setPixelFormat(AV_PIX_FMT_YUV420P);
-        recorder.setFormat("mp4");
+        recorder.setFormat(format);
         recorder.setFrameRate(grabber.getFrameRate());
         recorder.setSampleFormat(grabber.getSampleFormat());
         recorder.setSampleRate(grabber.getSampleRate());
@@ -263,6 +1679,13 @@ public class VideoMasker implements AutoCloseable {
 
     @Override
     public void close() throws Exception {
+        if (bandPool != null) {
+            bandPool.shutdown();
+        }
+        if (maskerPool != null) {
+            maskerPool.shutdown();
+        }
+        ImageMasker.releaseIdleMatchBuffers();
         this.allSubImageMaskers.forEach((masker) -> {
             try {
                 masker.close();
@@ -1,26 +1,67 @@
 package acceptance;
 
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.bytedeco.javacpp.avformat.AVStream;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Point;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
 import org.junit.Test;
+import tdl.anonymize.image.FrameContext;
+import tdl.anonymize.image.ImageMasker;
+import tdl.anonymize.video.MaskTimeline;
+import tdl.anonymize.video.MaskTimelineFile;
 import tdl.anonymize.video.VideoMasker;
 import tdl.record.image.input.GenerateInputWithMatrixOfBarcodes;
+import tdl.record.image.input.GenerateInputWithMovingSubImage;
 import tdl.record.image.output.OutputToBarcodeMatrixReader;
 import tdl.record.time.FakeTimeSource;
+import tdl.record.video.FixtureRecorder;
 import tdl.record.video.VideoPlayer;
 import tdl.record.video.VideoPlayerException;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static org.bytedeco.javacpp.avcodec.av_packet_unref;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.javacpp.opencv_core.CV_8UC3;
+import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGR2GRAY;
+import static org.bytedeco.javacpp.opencv_imgproc.TM_CCOEFF_NORMED;
+import static org.bytedeco.javacpp.opencv_imgproc.cvtColor;
+import static org.bytedeco.javacpp.opencv_imgproc.matchTemplate;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
 public class CanMaskSubImagesTest {
     private static final double TEST_MATCHING_THRESHOLD = 0.98;
+    private static final String MOVING_SUBIMAGE_PATH = "build/moving-subimage.png";
+    private static final int MOVING_SUBIMAGE_FRAMES = 60;
+    /**
+     * The read ahead step of the moving subimage, long enough for the frames between two read ahead frames to
+     * follow the previous frame
+     */
+    private static final int MOVING_SUBIMAGE_STEP = 5;
 
     @Test
     public void should_not_have_false_positives() throws Exception {
@@ -92,6 +133,639 @@ public class CanMaskSubImagesTest {
 
     }
 
+    @Test
+    public void should_produce_the_same_output_when_pipelined() throws Exception {
+        String sequentialDestination = "build/recording-masked.sequential.mp4";
+        String pipelinedDestination = "build/recording-masked.pipelined.mp4";
+        Path subImage1 = Paths.get("src/test/resources/rec_barcode_matrix/subimage-1.png");
+        Path subImage2 = Paths.get("src/test/resources/rec_barcode_matrix/subimage-2.png");
+
+        VideoMasker sequentialMasker = new VideoMasker(
+                Paths.get(GenerateInputWithMatrixOfBarcodes.BARCODE_VIDEO_PATH),
+                Paths.get(sequentialDestination),
+                Arrays.asList(subImage1, subImage2),
+                TEST_MATCHING_THRESHOLD
+        );
+        sequentialMasker.run(2);
+
+        VideoMasker pipelinedMasker = new VideoMasker(
+                Paths.get(GenerateInputWithMatrixOfBarcodes.BARCODE_VIDEO_PATH),
+                Paths.get(pipelinedDestination),
+                Arrays.asList(subImage1, subImage2),
+                TEST_MATCHING_THRESHOLD
+        );
+        pipelinedMasker.setPipelineDepth(2);
+        pipelinedMasker.setWorkerThreads(4);
+        pipelinedMasker.run(2);
+
+        assertThat(Files.readAllBytes(Paths.get(pipelinedDestination)),
+                is(Files.readAllBytes(Paths.get(sequentialDestination))));
+    }
+
+    @Test
+    public void should_mask_the_same_frames_when_only_re_encoding_dirty_gops() throws Exception {
+        String destination = "build/recording-masked.smart.mp4";
+        Path subImage1 = Paths.get("src/test/resources/rec_barcode_matrix/subimage-1.png");
+        Path subImage2 = Paths.get("src/test/resources/rec_barcode_matrix/subimage-2.png");
+        VideoMasker masker = new VideoMasker(
+                Paths.get(GenerateInputWithMatrixOfBarcodes.BARCODE_VIDEO_PATH),
+                Paths.get(destination),
+                Arrays.asList(subImage1, subImage2),
+                TEST_MATCHING_THRESHOLD
+        );
+        masker.setSmartReencode(true);
+        masker.run(1);
+
+        List<OutputToBarcodeMatrixReader.TimestampedPayload> tamperedBarcodes
+                = getReadedBarcodeFromVideo(destination).stream()
+                .filter(CanMaskSubImagesTest::isPayloadOutOfOrder)
+                .collect(Collectors.toList());
+        assertThat(tamperedBarcodes.size(), is(2));
+        assertDecodedBarcode(tamperedBarcodes.get(0),
+                7L, "", "1200", "1200", "");
+        assertDecodedBarcode(tamperedBarcodes.get(1),
+                9L, "", "", "", "");
+    }
+
+    @Test(expected = IOException.class)
+    public void should_reject_a_timeline_with_a_negative_rectangle() throws Exception {
+        Path timelinePath = Paths.get("build/recording-masked.negative.timeline.jsonl");
+        Files.write(timelinePath, Collections.singletonList(
+                "{\"from\":0,\"to\":5,\"masker\":\"subimage-1.png\",\"rects\":[[10,20,98,98],[-4,20,98,98]]}"));
+
+        MaskTimelineFile.read(timelinePath);
+    }
+
+    @Test
+    public void should_read_back_a_timeline_whatever_the_name_of_the_subimage() throws Exception {
+        Path timelinePath = Paths.get("build/recording-masked.escaped.timeline.jsonl");
+        String name = "token\\\",\"from\":0,\"rects\":[[1,1,1,1]]}.png";
+        MaskTimeline timeline = new MaskTimeline();
+        for (int frameIndex = 3; frameIndex < 6; frameIndex++) {
+            timeline.add(frameIndex, new MaskTimeline.Mask(name, 10, 20, 98, 98));
+        }
+        timeline.add(7, new MaskTimeline.Mask("subimage-2.png", 300, 20, 64, 32));
+
+        MaskTimelineFile.write(timeline, timelinePath);
+
+        assertThat(MaskTimelineFile.read(timelinePath).getMasksByFrame(), is(timeline.getMasksByFrame()));
+    }
+
+    @Test(expected = IOException.class)
+    public void should_reject_a_timeline_with_content_after_the_rectangles() throws Exception {
+        Path timelinePath = Paths.get("build/recording-masked.trailing.timeline.jsonl");
+        Files.write(timelinePath, Collections.singletonList(
+                "{\"from\":0,\"to\":5,\"masker\":\"subimage-1.png\",\"rects\":[[10,20,98,98]]}],[[0,0,1,1]]}"));
+
+        MaskTimelineFile.read(timelinePath);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_not_apply_a_timeline_with_an_unknown_subimage() throws Exception {
+        Path timelinePath = Paths.get("build/recording-masked.unknown.timeline.jsonl");
+        Files.write(timelinePath, Collections.singletonList(
+                "{\"from\":0,\"to\":5,\"masker\":\"subimage-3.png\",\"rects\":[[10,20,98,98]]}"));
+
+        VideoMasker applier = new VideoMasker(
+                Paths.get(GenerateInputWithMatrixOfBarcodes.BARCODE_VIDEO_PATH),
+                Paths.get("build/recording-masked.unknown.mp4"),
+                Collections.singletonList(Paths.get("src/test/resources/rec_barcode_matrix/subimage-1.png")),
+                TEST_MATCHING_THRESHOLD
+        );
+        applier.apply(MaskTimelineFile.read(timelinePath));
+    }
+
+    @Test
+    public void should_decode_every_frame_when_only_re_encoding_dirty_gops() throws Exception {
+        String source = "src/test/resources/rec_real/real-recording.mp4";
+        String destination = "build/real-recording-masked.smart.mp4";
+        VideoMasker masker = new VideoMasker(
+                Paths.get(source),
+                Paths.get(destination),
+                Arrays.asList(Paths.get("src/test/resources/rec_real/subimage-1.png"),
+                        Paths.get("src/test/resources/rec_real/subimage-2.png"),
+                        Paths.get("src/test/resources/rec_real/subimage-3.png")),
+                TEST_MATCHING_THRESHOLD
+        );
+        masker.setSmartReencode(true);
+        masker.run(5);
+
+        assertThat(countDecodedFrames(destination), is(countDecodedFrames(source)));
+    }
+
+    @Test
+    public void should_keep_the_timestamps_in_order_when_joining_parts_with_b_frames() throws Exception {
+        Path video = recordMovingSubImage(GenerateInputWithMovingSubImage.Motion.SHOW,
+                "build/moving-subimage.bframes.mp4", 2);
+        String segmentsDestination = "build/moving-subimage-masked.bframes.segments.mp4";
+        VideoMasker segmentsMasker = new VideoMasker(video, Paths.get(segmentsDestination),
+                Collections.singletonList(Paths.get(MOVING_SUBIMAGE_PATH)), TEST_MATCHING_THRESHOLD);
+        segmentsMasker.setSegmentThreads(2);
+        segmentsMasker.run(MOVING_SUBIMAGE_STEP);
+        String smartDestination = "build/moving-subimage-masked.bframes.smart.mp4";
+        VideoMasker smartMasker = new VideoMasker(video, Paths.get(smartDestination),
+                Collections.singletonList(Paths.get(MOVING_SUBIMAGE_PATH)), TEST_MATCHING_THRESHOLD);
+        smartMasker.setSmartReencode(true);
+        smartMasker.run(MOVING_SUBIMAGE_STEP);
+
+        // The parts are decoded ahead of their presentation, a shift by the first decoding timestamp moves them
+        assertTimestampsInOrder(segmentsDestination, MOVING_SUBIMAGE_FRAMES);
+        assertTimestampsInOrder(smartDestination, MOVING_SUBIMAGE_FRAMES);
+        assertThat(countDecodedFrames(segmentsDestination), is(MOVING_SUBIMAGE_FRAMES));
+        assertThat(countDecodedFrames(smartDestination), is(MOVING_SUBIMAGE_FRAMES));
+    }
+
+    @Test
+    public void should_mask_the_same_frames_when_masking_segments_in_parallel() throws Exception {
+        String destination = "build/recording-masked.segments.mp4";
+        Path subImage1 = Paths.get("src/test/resources/rec_barcode_static/subimage-1.png");
+        VideoMasker masker = new VideoMasker(
+                Paths.get(GenerateInputWithMatrixOfBarcodes.BARCODE_WITH_STATIC_PATH),
+                Paths.get(destination),
+                Collections.singletonList(subImage1),
+                TEST_MATCHING_THRESHOLD
+        );
+        masker.setSegmentThreads(2);
+        masker.run(3);
+
+        List<OutputToBarcodeMatrixReader.TimestampedPayload> tamperedBarcodes
+                = getReadedBarcodeFromVideo(destination).stream()
+                .filter(CanMaskSubImagesTest::isPayloadOutOfOrder)
+                .collect(Collectors.toList());
+        assertThat(tamperedBarcodes.size(), is(3));
+        assertDecodedBarcode(tamperedBarcodes.get(0),
+                3L, "999", "", "", "999");
+        assertDecodedBarcode(tamperedBarcodes.get(1),
+                4L, "999", "", "", "999");
+        assertDecodedBarcode(tamperedBarcodes.get(2),
+                5L, "999", "", "", "999");
+    }
+
+    @Test
+    public void should_mask_from_a_saved_timeline() throws Exception {
+        String destination = "build/recording-masked.applied.mp4";
+        Path timelinePath = Paths.get("build/recording-masked.timeline.jsonl");
+        Path subImage1 = Paths.get("src/test/resources/rec_barcode_matrix/subimage-1.png");
+        Path subImage2 = Paths.get("src/test/resources/rec_barcode_matrix/subimage-2.png");
+
+        VideoMasker detector = new VideoMasker(
+                Paths.get(GenerateInputWithMatrixOfBarcodes.BARCODE_VIDEO_PATH),
+                null,
+                Arrays.asList(subImage1, subImage2),
+                TEST_MATCHING_THRESHOLD
+        );
+        MaskTimelineFile.write(detector.detect(1), timelinePath);
+
+        VideoMasker applier = new VideoMasker(
+                Paths.get(GenerateInputWithMatrixOfBarcodes.BARCODE_VIDEO_PATH),
+                Paths.get(destination),
+                Arrays.asList(subImage1, subImage2),
+                TEST_MATCHING_THRESHOLD
+        );
+        applier.apply(MaskTimelineFile.read(timelinePath));
+
+        List<OutputToBarcodeMatrixReader.TimestampedPayload> tamperedBarcodes
+                = getReadedBarcodeFromVideo(destination).stream()
+                .filter(CanMaskSubImagesTest::isPayloadOutOfOrder)
+                .collect(Collectors.toList());
+        assertThat(tamperedBarcodes.size(), is(2));
+        assertDecodedBarcode(tamperedBarcodes.get(0),
+                7L, "", "1200", "1200", "");
+        assertDecodedBarcode(tamperedBarcodes.get(1),
+                9L, "", "", "", "");
+    }
+
+    @Test
+    public void should_detect_the_same_masks_from_the_detection_cache() throws Exception {
+        Path cacheDirectory = Paths.get("build/detection-cache");
+        deleteRecursively(cacheDirectory);
+
+        VideoMasker detector = createBarcodeMatrixDetector(cacheDirectory, TEST_MATCHING_THRESHOLD);
+        MaskTimeline detectedTimeline = detector.detect(2);
+        assertThat(detector.getDetectionCacheHits(), is(0L));
+        assertThat(detectedTimeline.getMaskedFrameCount() > 0, is(true));
+
+        VideoMasker cachedDetector = createBarcodeMatrixDetector(cacheDirectory, TEST_MATCHING_THRESHOLD);
+        MaskTimeline cachedTimeline = cachedDetector.detect(2);
+        assertThat(cachedDetector.getDetectionCacheHits(), is(2L));
+        assertThat(cachedTimeline.getMasksByFrame(), is(detectedTimeline.getMasksByFrame()));
+
+        VideoMasker otherThresholdDetector = createBarcodeMatrixDetector(cacheDirectory, 0.97);
+        otherThresholdDetector.detect(2);
+        assertThat(otherThresholdDetector.getDetectionCacheHits(), is(0L));
+
+        VideoMasker trackingDetector = createBarcodeMatrixDetector(cacheDirectory, TEST_MATCHING_THRESHOLD);
+        trackingDetector.setTracking(4, 0);
+        trackingDetector.detect(2);
+        assertThat(trackingDetector.getDetectionCacheHits(), is(0L));
+    }
+
+    @Test
+    public void should_produce_the_same_output_with_an_adaptive_step_when_pipelined() throws Exception {
+        String sequentialDestination = maskBarcodeMatrix("build/recording-masked.adaptive.sequential.mp4",
+                masker -> masker.setAdaptiveStep(1, 6));
+        for (int workerThreads : new int[]{1, 8}) {
+            String pipelinedDestination = maskBarcodeMatrix(
+                    "build/recording-masked.adaptive." + workerThreads + ".mp4", masker -> {
+                        masker.setAdaptiveStep(1, 6);
+                        masker.setPipelineDepth(3);
+                        masker.setWorkerThreads(workerThreads);
+                    });
+
+            assertSameOutput(pipelinedDestination, sequentialDestination);
+        }
+    }
+
+    @Test
+    public void should_produce_the_same_output_with_the_pyramid_search() throws Exception {
+        String plainDestination = maskBarcodeMatrix("build/recording-masked.plain.mp4", masker -> {
+        });
+        for (int levels = 1; levels <= 2; levels++) {
+            int pyramidLevels = levels;
+            String pyramidDestination = maskBarcodeMatrix("build/recording-masked.pyramid." + levels + ".mp4",
+                    masker -> masker.setPyramidLevels(pyramidLevels));
+
+            assertSameOutput(pyramidDestination, plainDestination);
+        }
+        String autoDestination = maskBarcodeMatrix("build/recording-masked.pyramid.auto.mp4",
+                masker -> masker.setPyramidLevels(ImageMasker.AUTO_PYRAMID_LEVELS));
+        assertSameOutput(autoDestination, plainDestination);
+    }
+
+    @Test
+    public void should_produce_the_same_output_when_tracking() throws Exception {
+        String plainDestination = maskBarcodeMatrix("build/recording-masked.plain.mp4", masker -> {
+        });
+        String trackingDestination = maskBarcodeMatrix("build/recording-masked.tracking.mp4",
+                masker -> masker.setTracking(4, 0));
+
+        assertSameOutput(trackingDestination, plainDestination);
+    }
+
+    @Test
+    public void should_follow_a_moving_subimage_when_tracking() throws Exception {
+        Path video = recordMovingSubImage(GenerateInputWithMovingSubImage.Motion.MOVE,
+                "build/moving-subimage.move.mp4", 0);
+        MaskTimeline plainTimeline = createMovingSubImageDetector(video).detect(MOVING_SUBIMAGE_STEP);
+        VideoMasker trackingDetector = createMovingSubImageDetector(video);
+        trackingDetector.setTracking(GenerateInputWithMovingSubImage.MOVE_SPEED + 1, 0);
+        MaskTimeline trackingTimeline = trackingDetector.detect(MOVING_SUBIMAGE_STEP);
+
+        // The subimage is in every frame, a little further each time
+        assertThat(plainTimeline.getMaskedFrameCount(), is(MOVING_SUBIMAGE_FRAMES));
+        assertThat(plainTimeline.getMasks(1).get(0).getX() - plainTimeline.getMasks(0).get(0).getX(),
+                is(GenerateInputWithMovingSubImage.MOVE_SPEED));
+        // Every frame between two read ahead frames follows the match of the frame before, but the first frame
+        // of the video which has no match before it
+        int normalFrames = MOVING_SUBIMAGE_FRAMES - MOVING_SUBIMAGE_FRAMES / MOVING_SUBIMAGE_STEP;
+        assertThat(trackingDetector.getTrackedMatches(), is((long) normalFrames - 1));
+        assertThat(trackingTimeline.getMasksByFrame(), is(plainTimeline.getMasksByFrame()));
+    }
+
+    @Test
+    public void should_produce_the_same_output_when_matching_in_the_frequency_domain() throws Exception {
+        String spatialDestination = maskBarcodeMatrix("build/recording-masked.spatial.mp4",
+                masker -> masker.setSpectrumMatching(false));
+        String spectrumDestination = maskBarcodeMatrix("build/recording-masked.spectrum.mp4",
+                masker -> masker.setSpectrumMatching(true));
+
+        assertSameOutput(spectrumDestination, spatialDestination);
+    }
+
+    @Test
+    public void should_produce_the_same_output_when_matching_in_bands() throws Exception {
+        String plainDestination = maskBarcodeMatrix("build/recording-masked.plain.mp4", masker -> {
+        });
+        String bandsDestination = maskBarcodeMatrix("build/recording-masked.bands.mp4",
+                masker -> masker.setBandThreads(4));
+
+        assertSameOutput(bandsDestination, plainDestination);
+    }
+
+    @Test
+    public void should_produce_the_same_output_with_the_motion_vectors() throws Exception {
+        String plainDestination = maskBarcodeMatrix("build/recording-masked.plain.mp4", masker -> {
+        });
+        String motionDestination = maskBarcodeMatrix("build/recording-masked.motion.mp4",
+                masker -> masker.setMotionVectors(true));
+
+        assertSameOutput(motionDestination, plainDestination);
+    }
+
+    @Test
+    public void should_only_search_the_changed_tiles() throws Exception {
+        Path video = recordMovingSubImage(GenerateInputWithMovingSubImage.Motion.APPEAR,
+                "build/moving-subimage.appear.mp4", 0);
+        MaskTimeline plainTimeline = createMovingSubImageDetector(video).detect(MOVING_SUBIMAGE_STEP);
+        VideoMasker dirtyTileDetector = createMovingSubImageDetector(video);
+        int tileSize = 32;
+        dirtyTileDetector.setDirtyTileSize(tileSize);
+        MaskTimeline dirtyTileTimeline = dirtyTileDetector.detect(MOVING_SUBIMAGE_STEP);
+
+        // Every frame between two read ahead frames is compared with the frame before, but the first one
+        int comparedFrames = MOVING_SUBIMAGE_FRAMES - MOVING_SUBIMAGE_FRAMES / MOVING_SUBIMAGE_STEP - 1;
+        int tilesPerFrame = ((GenerateInputWithMovingSubImage.WIDTH + tileSize - 1) / tileSize) *
+                ((GenerateInputWithMovingSubImage.HEIGHT + tileSize - 1) / tileSize);
+        assertThat(dirtyTileDetector.getScannedTiles() + dirtyTileDetector.getSkippedTiles(),
+                is((long) comparedFrames * tilesPerFrame));
+        // The page does not move, only the keyframes and the replaced decoy change most of their tiles
+        assertThat(dirtyTileDetector.getSkippedTiles() > dirtyTileDetector.getScannedTiles(), is(true));
+        assertThat(dirtyTileTimeline.getMasksByFrame(), is(plainTimeline.getMasksByFrame()));
+    }
+
+    @Test
+    public void should_find_a_subimage_appearing_in_place_with_the_motion_vectors() throws Exception {
+        // Without B-frames, so that the motion vectors are used on every frame
+        Path video = recordMovingSubImage(GenerateInputWithMovingSubImage.Motion.APPEAR,
+                "build/moving-subimage.appear.mp4", 0);
+        MaskTimeline plainTimeline = createMovingSubImageDetector(video).detect(MOVING_SUBIMAGE_STEP);
+        VideoMasker motionDetector = createMovingSubImageDetector(video);
+        motionDetector.setMotionVectors(true);
+        MaskTimeline motionTimeline = motionDetector.detect(MOVING_SUBIMAGE_STEP);
+
+        // The decoy is replaced in the middle of a block, next to a copy of the subimage that does not move
+        int appearanceFrame = GenerateInputWithMovingSubImage.APPEARANCE_FRAME;
+        assertThat(plainTimeline.getMasks(appearanceFrame - 1).size(), is(1));
+        assertThat(plainTimeline.getMasks(appearanceFrame).size(), is(2));
+        assertThat(motionDetector.getSkippedTiles() > 0, is(true));
+        assertThat(motionTimeline.getMasksByFrame(), is(plainTimeline.getMasksByFrame()));
+    }
+
+    @Test
+    public void should_find_the_bounds_of_an_interval_between_keyframes_when_sparse() throws Exception {
+        Path video = recordMovingSubImage(GenerateInputWithMovingSubImage.Motion.SHOW,
+                "build/moving-subimage.show.mp4", 0);
+        MaskTimeline plainTimeline = createMovingSubImageDetector(video).detect(MOVING_SUBIMAGE_STEP);
+        VideoMasker sparseDetector = createMovingSubImageDetector(video);
+        // One sample per GOP, the subimage appears and disappears in the middle of one
+        sparseDetector.setSparseStride(12);
+        MaskTimeline sparseTimeline = sparseDetector.detect(MOVING_SUBIMAGE_STEP);
+
+        int appearanceFrame = GenerateInputWithMovingSubImage.APPEARANCE_FRAME;
+        int disappearanceFrame = GenerateInputWithMovingSubImage.DISAPPEARANCE_FRAME;
+        assertThat(plainTimeline.getMasks(appearanceFrame - 1).size(), is(0));
+        assertThat(plainTimeline.getMasks(appearanceFrame).size(), is(1));
+        assertThat(plainTimeline.getMasks(disappearanceFrame - 1).size(), is(1));
+        assertThat(plainTimeline.getMasks(disappearanceFrame).size(), is(0));
+        assertThat(sparseTimeline.getMasksByFrame(), is(plainTimeline.getMasksByFrame()));
+    }
+
+    @Test
+    public void should_produce_the_same_output_with_the_scroll_detection() throws Exception {
+        String plainDestination = maskBarcodeMatrix("build/recording-masked.plain.mp4", masker -> {
+        });
+        String scrollDestination = maskBarcodeMatrix("build/recording-masked.scroll.mp4",
+                masker -> masker.setScrollDetection(true));
+
+        assertSameOutput(scrollDestination, plainDestination);
+    }
+
+    @Test
+    public void should_find_a_subimage_appearing_in_a_scrolling_page() throws Exception {
+        Path video = recordMovingSubImage(GenerateInputWithMovingSubImage.Motion.SCROLL,
+                "build/moving-subimage.scroll.mp4", 0);
+        MaskTimeline plainTimeline = createMovingSubImageDetector(video).detect(MOVING_SUBIMAGE_STEP);
+        VideoMasker scrollDetector = createMovingSubImageDetector(video);
+        scrollDetector.setScrollDetection(true);
+        MaskTimeline scrollTimeline = scrollDetector.detect(MOVING_SUBIMAGE_STEP);
+
+        // The second subimage appears in the middle of the screen, in the middle of a block
+        int appearanceFrame = GenerateInputWithMovingSubImage.APPEARANCE_FRAME;
+        assertThat(plainTimeline.getMasks(appearanceFrame - 1).size(), is(1));
+        assertThat(plainTimeline.getMasks(appearanceFrame).size(), is(2));
+        assertThat(scrollDetector.getScrolledFrames() > 0, is(true));
+        assertThat(scrollDetector.getShiftedMatches() > 0, is(true));
+        assertThat(scrollTimeline.getMasksByFrame(), is(plainTimeline.getMasksByFrame()));
+    }
+
+    @Test
+    public void should_produce_the_same_output_with_the_exact_match_when_pipelined() throws Exception {
+        String sequentialDestination = maskBarcodeMatrix("build/recording-masked.exact.sequential.mp4",
+                masker -> masker.setMatchMode(ImageMasker.MatchMode.AUTO));
+        String pipelinedDestination = maskBarcodeMatrix("build/recording-masked.exact.pipelined.mp4", masker -> {
+            masker.setMatchMode(ImageMasker.MatchMode.AUTO);
+            masker.setPipelineDepth(2);
+            masker.setWorkerThreads(4);
+        });
+
+        assertSameOutput(pipelinedDestination, sequentialDestination);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_reject_a_yuv_frame_with_padded_rows() {
+        Frame frame = createYuvFrame(4, 4, 8);
+
+        VideoMasker.wrapI420(frame).close();
+    }
+
+    @Test
+    public void should_view_an_unpadded_yuv_frame_without_copying_it() {
+        Frame frame = createYuvFrame(4, 4, 4);
+        ByteBuffer planes = (ByteBuffer) frame.image[0];
+
+        try (Mat yuvFrame = VideoMasker.wrapI420(frame)) {
+            assertThat(yuvFrame.rows(), is(6));
+            assertThat(yuvFrame.cols(), is(4));
+            byte[] wrapped = new byte[planes.capacity()];
+            yuvFrame.data().get(wrapped);
+            for (int i = 0; i < wrapped.length; i++) {
+                assertThat(wrapped[i], is(planes.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void should_mask_an_appearing_subimage_at_most_the_schedule_latency_late() throws Exception {
+        int readAheadStep = 2;
+        int scheduleLatency = 4;
+        // The latency in read ahead frames, plus the block of the read ahead frame that finds the subimage
+        int maxDelay = (scheduleLatency + 1) * readAheadStep;
+        List<Path> subImages = Arrays.asList(Paths.get("src/test/resources/rec_real/subimage-1.png"),
+                Paths.get("src/test/resources/rec_real/subimage-2.png"),
+                Paths.get("src/test/resources/rec_real/subimage-3.png"));
+        VideoMasker plainMasker = new VideoMasker(Paths.get("src/test/resources/rec_real/real-recording.mp4"),
+                null, subImages, TEST_MATCHING_THRESHOLD);
+        MaskTimeline plainTimeline = plainMasker.detect(readAheadStep);
+        VideoMasker scheduledMasker = new VideoMasker(Paths.get("src/test/resources/rec_real/real-recording.mp4"),
+                null, subImages, TEST_MATCHING_THRESHOLD);
+        scheduledMasker.setMaskerSchedule(scheduleLatency);
+        MaskTimeline scheduledTimeline = scheduledMasker.detect(readAheadStep);
+
+        for (Path subImage : subImages) {
+            String name = subImage.getFileName().toString();
+            List<Integer> plainFrames = getMaskedFrames(plainTimeline, name);
+            List<Integer> scheduledFrames = getMaskedFrames(scheduledTimeline, name);
+            for (int i = 0; i < plainFrames.size(); i++) {
+                // Only the appearances that last longer than the latency are sure to be found
+                int appearance = plainFrames.get(i);
+                boolean appears = i == 0 || plainFrames.get(i - 1) != appearance - 1;
+                boolean lasts = i + maxDelay < plainFrames.size() &&
+                        plainFrames.get(i + maxDelay) == appearance + maxDelay;
+                if (appears && lasts) {
+                    assertThat(name + " appearing in frame " + appearance,
+                            scheduledFrames.stream().anyMatch(frame ->
+                                    frame >= appearance && frame <= appearance + maxDelay), is(true));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void should_mask_a_frame_with_a_subimage_read_from_a_file() throws Exception {
+        Mat frame = imread("src/test/resources/images/barcode-image.png");
+        try (ImageMasker masker = new ImageMasker(Paths.get("src/test/resources/images/qrcode-subimage-1.png"),
+                TEST_MATCHING_THRESHOLD)) {
+            List<Point> matchedPoints = masker.findMatchingPoints(frame);
+            assertThat(matchedPoints.isEmpty(), is(false));
+
+            masker.blurPoints(matchedPoints, frame);
+            assertThat(masker.findMatchingPoints(frame).size(), is(0));
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void should_produce_the_same_output_when_matching_the_maskers_concurrently() throws Exception {
+        String sequentialDestination = maskBarcodeMatrix("build/recording-masked.maskers.sequential.mp4",
+                masker -> {
+                });
+        String concurrentDestination = maskBarcodeMatrix("build/recording-masked.maskers.concurrent.mp4",
+                masker -> {
+                    masker.setMaskerThreads(4);
+                    masker.setPipelineDepth(2);
+                    masker.setWorkerThreads(4);
+                });
+
+        assertSameOutput(concurrentDestination, sequentialDestination);
+    }
+
+    @Test
+    public void should_find_the_same_points_when_a_masker_is_shared_by_threads() throws Exception {
+        int threads = 8;
+        int rounds = 10;
+        Mat frame = imread("src/test/resources/images/barcode-image.png");
+        List<FrameContext> frameContexts = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (ImageMasker masker = new ImageMasker(Paths.get("src/test/resources/images/qrcode-subimage-1.png"),
+                TEST_MATCHING_THRESHOLD)) {
+            masker.setPyramidLevels(1);
+            List<String> expectedPoints = describePoints(masker.findMatchingPoints(frame));
+            assertThat(expectedPoints.isEmpty(), is(false));
+
+            // The threads start each round together on a new context, so they also race to fill its levels
+            for (int round = 0; round < rounds; round++) {
+                frameContexts.add(new FrameContext(frame));
+            }
+            CyclicBarrier barrier = new CyclicBarrier(threads);
+            List<Future<List<List<String>>>> results = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                results.add(pool.submit(() -> {
+                    List<List<String>> threadPoints = new ArrayList<>();
+                    for (FrameContext frameContext : frameContexts) {
+                        barrier.await();
+                        threadPoints.add(describePoints(masker.findMatchingPoints(frameContext)));
+                    }
+                    return threadPoints;
+                }));
+            }
+
+            for (Future<List<List<String>>> result : results) {
+                for (List<String> points : result.get()) {
+                    assertThat(points, is(expectedPoints));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            frameContexts.forEach(FrameContext::close);
+            frame.release();
+        }
+    }
+
+    @Test
+    public void should_keep_the_same_points_as_a_greedy_non_maximum_suppression() throws Exception {
+        Mat frame = imread("src/test/resources/images/barcode-image.png");
+        Mat subImage = imread("src/test/resources/images/qrcode-subimage-1.png");
+        try (ImageMasker masker = new ImageMasker(Paths.get("src/test/resources/images/qrcode-subimage-1.png"),
+                TEST_MATCHING_THRESHOLD);
+             Mat frameGrey = new Mat();
+             Mat subImageGrey = new Mat();
+             Mat scores = new Mat()) {
+            masker.setSpectrumMatching(false);
+            List<Point> matchedPoints = masker.findMatchingPoints(frame);
+
+            // Every hit above the threshold, best first, kept unless a kept hit is closer than the subimage side
+            cvtColor(frame, frameGrey, COLOR_BGR2GRAY);
+            cvtColor(subImage, subImageGrey, COLOR_BGR2GRAY);
+            matchTemplate(frameGrey, subImageGrey, scores, TM_CCOEFF_NORMED);
+            FloatIndexer scoreIndexer = scores.createIndexer();
+            List<int[]> hits = new ArrayList<>();
+            for (int y = 0; y < scores.rows(); y++) {
+                for (int x = 0; x < scores.cols(); x++) {
+                    if (scoreIndexer.get(y, x) > TEST_MATCHING_THRESHOLD) {
+                        hits.add(new int[]{x, y});
+                    }
+                }
+            }
+            hits.sort(Comparator.comparingDouble((int[] hit) -> -scoreIndexer.get(hit[1], hit[0])));
+            long maxDistance = Math.min(subImage.cols(), subImage.rows());
+            List<int[]> expectedPoints = new ArrayList<>();
+            for (int[] hit : hits) {
+                boolean suppressed = expectedPoints.stream().anyMatch(kept ->
+                        (long) (kept[0] - hit[0]) * (kept[0] - hit[0]) +
+                                (long) (kept[1] - hit[1]) * (kept[1] - hit[1]) <= maxDistance * maxDistance);
+                if (!suppressed) {
+                    expectedPoints.add(hit);
+                }
+            }
+            scoreIndexer.release();
+            expectedPoints.sort(Comparator.comparingInt((int[] point) -> point[1]).thenComparingInt(point -> point[0]));
+
+            assertThat(matchedPoints.isEmpty(), is(false));
+            assertThat(matchedPoints.size(), is(expectedPoints.size()));
+            for (int i = 0; i < expectedPoints.size(); i++) {
+                assertThat(matchedPoints.get(i).x(), is(expectedPoints.get(i)[0]));
+                assertThat(matchedPoints.get(i).y(), is(expectedPoints.get(i)[1]));
+            }
+        } finally {
+            frame.release();
+            subImage.release();
+        }
+    }
+
+    @Test
+    public void should_find_the_altered_occurrences_in_a_frame_with_an_exact_one() throws Exception {
+        Mat subImage = imread("src/test/resources/images/qrcode-subimage-1.png");
+        try (Scalar background = new Scalar(200, 200, 200, 0);
+             Mat frame = new Mat(480, 640, CV_8UC3, background);
+             Rect exactArea = new Rect(20, 30, subImage.cols(), subImage.rows());
+             Rect alteredArea = new Rect(320, 240, subImage.cols(), subImage.rows());
+             Mat exactRegion = new Mat(frame, exactArea);
+             Mat alteredRegion = new Mat(frame, alteredArea);
+             ImageMasker masker = new ImageMasker(Paths.get("src/test/resources/images/qrcode-subimage-1.png"),
+                     TEST_MATCHING_THRESHOLD)) {
+            // The same pattern, a few grey levels lighter, as a lossy encoding would leave it
+            subImage.copyTo(exactRegion);
+            subImage.convertTo(alteredRegion, -1, 1, 8);
+
+            masker.setMatchMode(ImageMasker.MatchMode.EXACT);
+            List<Point> exactPoints = masker.findMatchingPoints(frame);
+            assertThat(exactPoints.size(), is(1));
+            assertThat(exactPoints.get(0).x(), is(20));
+            assertThat(exactPoints.get(0).y(), is(30));
+
+            masker.setMatchMode(ImageMasker.MatchMode.AUTO);
+            List<Point> autoPoints = masker.findMatchingPoints(frame);
+            assertThat(autoPoints.size(), is(2));
+            assertThat(autoPoints.get(0).x(), is(20));
+            assertThat(autoPoints.get(0).y(), is(30));
+            assertThat(autoPoints.get(1).x(), is(320));
+            assertThat(autoPoints.get(1).y(), is(240));
+        } finally {
+            subImage.release();
+        }
+    }
+
     @SuppressWarnings("SameParameterValue")
     private void assertDecodedBarcode(OutputToBarcodeMatrixReader.TimestampedPayload frame, long timestamp,
                                       String topLeft, String topRight, String bottomLeft, String bottomRight) {
@@ -103,6 +777,156 @@ public class CanMaskSubImagesTest {
     }
 
     //~~~~~~~~~~ Helpers
+    /**
+     * Masks the two subimages of the barcode matrix recording with a read ahead step of 2
+     *
+     * @return the destination
+     */
+    private static String maskBarcodeMatrix(String destination, Consumer<VideoMasker> settings) throws Exception {
+        VideoMasker masker = new VideoMasker(
+                Paths.get(GenerateInputWithMatrixOfBarcodes.BARCODE_VIDEO_PATH),
+                Paths.get(destination),
+                Arrays.asList(Paths.get("src/test/resources/rec_barcode_matrix/subimage-1.png"),
+                        Paths.get("src/test/resources/rec_barcode_matrix/subimage-2.png")),
+                TEST_MATCHING_THRESHOLD
+        );
+        settings.accept(masker);
+        masker.run(2);
+        return destination;
+    }
+
+    /**
+     * Records the motion into the destination, the subimage is written to MOVING_SUBIMAGE_PATH
+     *
+     * @param bFrames the number of consecutive B-frames the encoder may use
+     */
+    private static Path recordMovingSubImage(GenerateInputWithMovingSubImage.Motion motion, String destination,
+                                             int bFrames) throws Exception {
+        GenerateInputWithMovingSubImage input =
+                new GenerateInputWithMovingSubImage(motion, MOVING_SUBIMAGE_FRAMES);
+        input.saveSubImage(Paths.get(MOVING_SUBIMAGE_PATH));
+        new FixtureRecorder.Builder(input)
+                .withVideoOption("bf", Integer.toString(bFrames))
+                .build()
+                .record(destination, MOVING_SUBIMAGE_FRAMES);
+        return Paths.get(destination);
+    }
+
+    private static VideoMasker createMovingSubImageDetector(Path video) {
+        return new VideoMasker(video, null, Collections.singletonList(Paths.get(MOVING_SUBIMAGE_PATH)),
+                TEST_MATCHING_THRESHOLD);
+    }
+
+    /**
+     * A frame as the grabber returns it in the YUV native mode, with the rows of each plane stride bytes apart
+     */
+    private static Frame createYuvFrame(int width, int height, int stride) {
+        ByteBuffer planes = ByteBuffer.allocateDirect(stride * height * 3 / 2);
+        for (int i = 0; i < planes.capacity(); i++) {
+            planes.put(i, (byte) i);
+        }
+        Frame frame = new Frame();
+        frame.imageWidth = width;
+        frame.imageHeight = height;
+        frame.imageDepth = Frame.DEPTH_UBYTE;
+        frame.imageChannels = 1;
+        frame.imageStride = stride;
+        frame.image = new Buffer[]{planes};
+        return frame;
+    }
+
+    private static VideoMasker createBarcodeMatrixDetector(Path cacheDirectory, double matchingThreshold) {
+        VideoMasker detector = new VideoMasker(
+                Paths.get(GenerateInputWithMatrixOfBarcodes.BARCODE_VIDEO_PATH),
+                null,
+                Arrays.asList(Paths.get("src/test/resources/rec_barcode_matrix/subimage-1.png"),
+                        Paths.get("src/test/resources/rec_barcode_matrix/subimage-2.png")),
+                matchingThreshold
+        );
+        detector.setDetectionCache(cacheDirectory, 1024 * 1024);
+        return detector;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static void assertSameOutput(String destination, String expectedDestination) throws IOException {
+        assertThat(destination, Files.readAllBytes(Paths.get(destination)),
+                is(Files.readAllBytes(Paths.get(expectedDestination))));
+    }
+
+    private static int countDecodedFrames(String path) throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(path);
+        grabber.start();
+        try {
+            int frames = 0;
+            Frame frame;
+            while ((frame = grabber.grabImage()) != null) {
+                assertThat(path + " frame " + frames, frame.image != null, is(true));
+                frames++;
+            }
+            return frames;
+        } finally {
+            grabber.release();
+        }
+    }
+
+    /**
+     * @return the points as "x,y" in the order they were found, the points are closed
+     */
+    private static List<String> describePoints(List<Point> points) {
+        List<String> described = points.stream().map(point -> point.x() + "," + point.y())
+                .collect(Collectors.toList());
+        points.forEach(Point::close);
+        return described;
+    }
+
+    /**
+     * The decoding timestamps of the video packets must increase and the frames must be presented from 0, one
+     * frame duration apart, without a gap or an overlap where the parts were joined
+     */
+    private static void assertTimestampsInOrder(String path, int frameCount) throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(path);
+        grabber.start();
+        try {
+            List<Long> presentationTimestamps = new ArrayList<>();
+            long lastDts = Long.MIN_VALUE;
+            AVPacket packet;
+            while ((packet = grabber.grabPacket()) != null) {
+                AVStream stream = grabber.getFormatContext().streams(packet.stream_index());
+                if (stream.codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
+                    assertThat(path + " dts " + packet.dts() + " after " + lastDts, packet.dts() > lastDts, is(true));
+                    lastDts = packet.dts();
+                    presentationTimestamps.add(packet.pts());
+                }
+                av_packet_unref(packet);
+            }
+
+            Collections.sort(presentationTimestamps);
+            assertThat(path, presentationTimestamps.size(), is(frameCount));
+            assertThat(path + " first pts", presentationTimestamps.get(0) >= 0, is(true));
+            long frameDuration = presentationTimestamps.get(1) - presentationTimestamps.get(0);
+            for (int i = 1; i < presentationTimestamps.size(); i++) {
+                assertThat(path + " frame " + i, presentationTimestamps.get(i) - presentationTimestamps.get(i - 1),
+                        is(frameDuration));
+            }
+        } finally {
+            grabber.release();
+        }
+    }
+
+    private static List<Integer> getMaskedFrames(MaskTimeline timeline, String maskerName) {
+        return new ArrayList<>(timeline.select(maskerName).getMasksByFrame().keySet());
+    }
+
     private static boolean isPayloadOutOfOrder(OutputToBarcodeMatrixReader.TimestampedPayload payload) {
         return !isPayloadConsistent(payload);
     }
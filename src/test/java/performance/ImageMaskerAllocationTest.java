@@ -0,0 +1,71 @@
+package performance;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.junit.Test;
+import tdl.anonymize.image.FrameContext;
+import tdl.anonymize.image.ImageMasker;
+import tdl.anonymize.image.MatchedPoints;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+
+import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class ImageMaskerAllocationTest {
+
+    private static final int WARM_UP_FRAMES = 20;
+    private static final int MEASURED_FRAMES = 100;
+
+    @Test
+    public void should_not_allocate_in_steady_state() throws Exception {
+        Mat mainImage = imread("src/test/resources/images/barcode-image.png");
+        try (ImageMasker masker = new ImageMasker(Paths.get("src/test/resources/rec_real/subimage-2.png"), 0.96);
+             FrameContext frameContext = new FrameContext(mainImage)) {
+
+            for (int i = 0; i < WARM_UP_FRAMES; i++) {
+                assertThat(masker.findMatchingPoints(frameContext).size(), is(0));
+            }
+
+            long allocatedPerFrame = measureAllocatedPerFrame(() -> masker.findMatchingPoints(frameContext));
+            assertThat(allocatedPerFrame, lessThan(16L));
+        }
+    }
+
+    @Test
+    public void should_not_allocate_in_steady_state_with_matches() throws Exception {
+        Mat mainImage = imread("src/test/resources/images/barcode-image.png");
+        MatchedPoints matchedPoints = new MatchedPoints();
+        try (ImageMasker masker = new ImageMasker(Paths.get("src/test/resources/images/qrcode-subimage-1.png"),
+                0.98);
+             FrameContext frameContext = new FrameContext(mainImage)) {
+
+            for (int i = 0; i < WARM_UP_FRAMES; i++) {
+                assertThat(masker.findMatchingPoints(frameContext, matchedPoints).size(), greaterThan(0));
+            }
+
+            long allocatedPerFrame = measureAllocatedPerFrame(
+                    () -> masker.findMatchingPoints(frameContext, matchedPoints));
+            assertThat(allocatedPerFrame, lessThan(16L));
+        }
+    }
+
+    private static long measureAllocatedPerFrame(Runnable frame) {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            frame.run();
+        }
+        long allocatedAfter = threadBean.getThreadAllocatedBytes(threadId);
+
+        long allocatedPerFrame = (allocatedAfter - allocatedBefore) / MEASURED_FRAMES;
+        System.out.printf("Allocated per frame: %d bytes\n", allocatedPerFrame);
+        return allocatedPerFrame;
+    }
+}
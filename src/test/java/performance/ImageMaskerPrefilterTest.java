@@ -0,0 +1,68 @@
+package performance;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Point;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.junit.Test;
+import tdl.anonymize.image.FrameContext;
+import tdl.anonymize.image.ImageMasker;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
+import static org.bytedeco.javacpp.opencv_imgcodecs.imwrite;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ImageMaskerPrefilterTest {
+
+    private static final int MEASURED_FRAMES = 50;
+    /**
+     * Below the size matched in the frequency domain, which does not use the prefilter
+     */
+    private static final int CORNER_SIZE = 48;
+
+    @Test
+    public void should_find_the_same_points_with_the_prefilter() throws Exception {
+        // The finder pattern in the corner of the QR codes
+        Path subImagePath = Paths.get("build/qrcode-corner.png");
+        Mat qrCode = imread("src/test/resources/images/qrcode-subimage-1.png");
+        try (Rect corner = new Rect(0, 0, CORNER_SIZE, CORNER_SIZE);
+             Mat cornerImage = new Mat(qrCode, corner)) {
+            imwrite(subImagePath.toString(), cornerImage);
+        }
+
+        Mat mainImage = imread("src/test/resources/images/barcode-image.png");
+        try (ImageMasker masker = new ImageMasker(subImagePath, 0.96);
+             FrameContext frameContext = new FrameContext(mainImage)) {
+
+            List<Point> expectedPoints = masker.findMatchingPoints(frameContext);
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_FRAMES; i++) {
+                masker.findMatchingPoints(frameContext);
+            }
+            long withoutPrefilter = System.nanoTime() - start;
+
+            masker.setPrefilter(true);
+            List<Point> filteredPoints = masker.findMatchingPoints(frameContext);
+            start = System.nanoTime();
+            for (int i = 0; i < MEASURED_FRAMES; i++) {
+                masker.findMatchingPoints(frameContext);
+            }
+            long withPrefilter = System.nanoTime() - start;
+
+            System.out.printf("Rejected %d of %d positions, speedup: %f\n", masker.getRejectedPositions(),
+                    masker.getPrefilteredPositions(), (double) withoutPrefilter / withPrefilter);
+            assertThat(masker.getRejectedPositions(), greaterThan(0L));
+            assertThat(expectedPoints.isEmpty(), is(false));
+            assertThat(filteredPoints.size(), is(expectedPoints.size()));
+            for (int i = 0; i < expectedPoints.size(); i++) {
+                assertThat(filteredPoints.get(i).x(), is(expectedPoints.get(i).x()));
+                assertThat(filteredPoints.get(i).y(), is(expectedPoints.get(i).y()));
+            }
+        }
+    }
+}
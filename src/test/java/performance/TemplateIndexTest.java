@@ -0,0 +1,57 @@
+package performance;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Point;
+import org.junit.Test;
+import tdl.anonymize.image.FrameContext;
+import tdl.anonymize.image.ImageMasker;
+import tdl.anonymize.image.TemplateIndex;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TemplateIndexTest {
+
+    private static final int MEASURED_FRAMES = 50;
+
+    @Test
+    public void should_find_the_same_points_through_the_index() throws Exception {
+        Mat mainImage = imread("src/test/resources/images/barcode-image.png");
+        try (ImageMasker masker = new ImageMasker(Paths.get("src/test/resources/images/qrcode-subimage-1.png"), 0.96);
+             FrameContext frameContext = new FrameContext(mainImage)) {
+            TemplateIndex index = TemplateIndex.of(Collections.singletonList(masker));
+            assertThat(index.getIndexedMaskers().size(), is(1));
+
+            List<Point> expectedPoints = masker.findMatchingPoints(frameContext);
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_FRAMES; i++) {
+                masker.findMatchingPoints(frameContext);
+            }
+            long withoutIndex = System.nanoTime() - start;
+
+            Map<ImageMasker, List<Point>> candidates = index.findCandidates(frameContext);
+            List<Point> indexedPoints = masker.verifyCandidates(frameContext, candidates.get(masker),
+                    TemplateIndex.CANDIDATE_RADIUS);
+            start = System.nanoTime();
+            for (int i = 0; i < MEASURED_FRAMES; i++) {
+                masker.verifyCandidates(frameContext, index.findCandidates(frameContext).get(masker),
+                        TemplateIndex.CANDIDATE_RADIUS);
+            }
+            long withIndex = System.nanoTime() - start;
+
+            System.out.printf("Verified %d candidates, speedup: %f\n", candidates.get(masker).size(),
+                    (double) withoutIndex / withIndex);
+            assertThat(indexedPoints.size(), is(expectedPoints.size()));
+            for (int i = 0; i < expectedPoints.size(); i++) {
+                assertThat(indexedPoints.get(i).x(), is(expectedPoints.get(i).x()));
+                assertThat(indexedPoints.get(i).y(), is(expectedPoints.get(i).y()));
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package tdl.record.image.input;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Renders a QR code over a page of grey text lines, the QR code is the subimage to mask.
+ * The page and the QR code move from frame to frame as set by the motion, so that the masker has to follow them
+ * instead of finding them in the same place. The frames are numbered by the calls to readImage.
+ */
+public class GenerateInputWithMovingSubImage implements ImageInput {
+    public static final int WIDTH = 640;
+    public static final int HEIGHT = 352;
+    public static final int SUBIMAGE_SIZE = 96;
+    /**
+     * The frame where a second QR code appears in place, in the middle of a block of 5 frames
+     */
+    public static final int APPEARANCE_FRAME = 23;
+    /**
+     * The first frame without the subimage when it is only shown for a while, in the middle of a GOP as well
+     */
+    public static final int DISAPPEARANCE_FRAME = 41;
+    public static final int MOVE_SPEED = 3;
+    public static final int SCROLL_SPEED = 4;
+
+    private static final String SUBIMAGE_PAYLOAD = "subimage";
+    private static final String DECOY_PAYLOAD = "decoy";
+    private static final int LINE_HEIGHT = 24;
+
+    public enum Motion {
+        /**
+         * The page does not move, a decoy QR code is replaced by the subimage in place from APPEARANCE_FRAME.
+         * Another copy of the subimage stays still in the corner.
+         */
+        APPEAR,
+        /**
+         * The page does not move, the subimage replaces a decoy in place from APPEARANCE_FRAME until
+         * DISAPPEARANCE_FRAME, there is no other copy of it
+         */
+        SHOW,
+        /**
+         * The subimage moves over the still page by MOVE_SPEED pixels per frame, right and down
+         */
+        MOVE,
+        /**
+         * The whole page scrolls up by SCROLL_SPEED pixels per frame, carrying the subimage. From APPEARANCE_FRAME a
+         * second copy of the subimage is drawn onto the page in the middle of the screen, outside of the rows
+         * revealed by the scrolling.
+         */
+        SCROLL
+    }
+
+    private final Motion motion;
+    private final int frameCount;
+    private final BufferedImage page;
+    private final BufferedImage subImage;
+    private final BufferedImage decoy;
+    private final BufferedImage frame;
+    private int frameIndex;
+
+    /**
+     * @param frameCount the number of frames that will be read, the page is tall enough to scroll through them
+     */
+    public GenerateInputWithMovingSubImage(Motion motion, int frameCount) {
+        this.motion = motion;
+        this.frameCount = frameCount;
+        this.page = renderPage(WIDTH, HEIGHT + frameCount * SCROLL_SPEED);
+        this.subImage = renderQrCode(SUBIMAGE_PAYLOAD);
+        this.decoy = renderQrCode(DECOY_PAYLOAD);
+        this.frame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    /**
+     * Writes the subimage to mask, pixel for pixel as it is drawn in the frames
+     */
+    public void saveSubImage(Path path) throws IOException {
+        ImageIO.write(subImage, "png", path.toFile());
+    }
+
+    @Override
+    public void open() {
+        frameIndex = 0;
+    }
+
+    @Override
+    public BufferedImage readImage() throws InputImageGenerationException {
+        if (frameIndex >= frameCount) {
+            throw new InputImageGenerationException(
+                    new IllegalStateException("Only " + frameCount + " frames can be read"));
+        }
+        Graphics2D g2d = frame.createGraphics();
+        if (motion == Motion.APPEAR) {
+            g2d.drawImage(page, 0, 0, null);
+            g2d.drawImage(frameIndex < APPEARANCE_FRAME ? decoy : subImage, 208, 128, null);
+            g2d.drawImage(subImage, 496, 32, null);
+        } else if (motion == Motion.SHOW) {
+            boolean shown = frameIndex >= APPEARANCE_FRAME && frameIndex < DISAPPEARANCE_FRAME;
+            g2d.drawImage(page, 0, 0, null);
+            g2d.drawImage(shown ? subImage : decoy, 208, 128, null);
+        } else if (motion == Motion.MOVE) {
+            g2d.drawImage(page, 0, 0, null);
+            g2d.drawImage(subImage, 40 + frameIndex * MOVE_SPEED, 40 + frameIndex * MOVE_SPEED, null);
+        } else {
+            int offset = frameIndex * SCROLL_SPEED;
+            g2d.drawImage(page, 0, -offset, null);
+            g2d.drawImage(subImage, 80, HEIGHT / 2 - offset, null);
+            if (frameIndex >= APPEARANCE_FRAME) {
+                int appearanceOffset = APPEARANCE_FRAME * SCROLL_SPEED;
+                g2d.drawImage(subImage, 400, (HEIGHT - SUBIMAGE_SIZE) / 2 + appearanceOffset - offset, null);
+            }
+        }
+        g2d.dispose();
+        frameIndex++;
+        return frame;
+    }
+
+    @Override
+    public BufferedImage getSampleImage() {
+        return new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    @Override
+    public int getWidth() {
+        return WIDTH;
+    }
+
+    @Override
+    public int getHeight() {
+        return HEIGHT;
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    //~~~~ Rendering
+
+    /**
+     * Lines of words drawn as grey boxes, the same page for every run
+     */
+    private static BufferedImage renderPage(int width, int height) {
+        BufferedImage page = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g2d = page.createGraphics();
+        g2d.setPaint(Color.white);
+        g2d.fillRect(0, 0, width, height);
+        Random random = new Random(42);
+        for (int y = 8; y + LINE_HEIGHT <= height; y += LINE_HEIGHT) {
+            int x = 8 + random.nextInt(24);
+            while (x < width - 8) {
+                int wordWidth = 16 + random.nextInt(72);
+                int grey = 40 + random.nextInt(100);
+                g2d.setPaint(new Color(grey, grey, grey));
+                g2d.fillRect(x, y, Math.min(wordWidth, width - 8 - x), 10);
+                x += wordWidth + 10;
+            }
+        }
+        g2d.dispose();
+        return page;
+    }
+
+    private static BufferedImage renderQrCode(String payload) {
+        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.MARGIN, 1);
+        BitMatrix qrCode;
+        try {
+            qrCode = new MultiFormatWriter().encode(payload, BarcodeFormat.QR_CODE, SUBIMAGE_SIZE, SUBIMAGE_SIZE, hints);
+        } catch (WriterException e) {
+            throw new IllegalStateException("Could not encode " + payload, e);
+        }
+
+        BufferedImage image = new BufferedImage(qrCode.getWidth(), qrCode.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < qrCode.getHeight(); y++) {
+            for (int x = 0; x < qrCode.getWidth(); x++) {
+                image.setRGB(x, y, qrCode.get(x, y) ? Color.black.getRGB() : Color.white.getRGB());
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,99 @@
+package tdl.record.video;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.FrameRecorder;
+import org.bytedeco.javacv.Java2DFrameConverter;
+import tdl.record.image.input.ImageInput;
+import tdl.record.image.input.InputImageGenerationException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUV420P;
+
+/**
+ * Records the images of an input as fast as they are rendered, one frame per image, into a H.264 mp4.
+ *
+ * Unlike the VideoRecorder, the options of the encoder can be set, so that a fixture can rely on how its stream
+ * is coded, e.g. with or without B-frames.
+ */
+public class FixtureRecorder {
+    private final ImageInput imageInput;
+    private final int frameRate;
+    private final int gopSize;
+    private final Map<String, String> videoOptions;
+
+    private FixtureRecorder(ImageInput imageInput, int frameRate, int gopSize, Map<String, String> videoOptions) {
+        this.imageInput = imageInput;
+        this.frameRate = frameRate;
+        this.gopSize = gopSize;
+        this.videoOptions = videoOptions;
+    }
+
+    @SuppressWarnings("SameParameterValue")
+    public static class Builder {
+        private final ImageInput bImageInput;
+        private int bFrameRate;
+        private int bGopSize;
+        private final Map<String, String> bVideoOptions;
+
+        public Builder(ImageInput imageInput) {
+            bImageInput = imageInput;
+            bFrameRate = 10;
+            bGopSize = 12;
+            bVideoOptions = new LinkedHashMap<>();
+            bVideoOptions.put("crf", "18");
+        }
+
+        public Builder withFrameRate(int frameRate) {
+            this.bFrameRate = frameRate;
+            return this;
+        }
+
+        public Builder withGopSize(int gopSize) {
+            this.bGopSize = gopSize;
+            return this;
+        }
+
+        /**
+         * @param name an option of the encoder, e.g. bf for the number of consecutive B-frames
+         */
+        public Builder withVideoOption(String name, String value) {
+            this.bVideoOptions.put(name, value);
+            return this;
+        }
+
+        public FixtureRecorder build() {
+            return new FixtureRecorder(bImageInput, bFrameRate, bGopSize, new LinkedHashMap<>(bVideoOptions));
+        }
+    }
+
+    public void record(String destination, int frameCount) throws VideoRecorderException {
+        try {
+            imageInput.open();
+        } catch (InputImageGenerationException e) {
+            throw new VideoRecorderException("Could not open input source", e);
+        }
+
+        Java2DFrameConverter converter = new Java2DFrameConverter();
+        try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(destination,
+                imageInput.getWidth(), imageInput.getHeight(), 0)) {
+            recorder.setFormat("mp4");
+            recorder.setVideoCodec(AV_CODEC_ID_H264);
+            recorder.setPixelFormat(AV_PIX_FMT_YUV420P);
+            recorder.setFrameRate(frameRate);
+            recorder.setGopSize(gopSize);
+            videoOptions.forEach(recorder::setVideoOption);
+            recorder.start();
+            for (int i = 0; i < frameCount; i++) {
+                recorder.record(converter.convert(imageInput.readImage()));
+            }
+            recorder.stop();
+        } catch (FrameRecorder.Exception | InputImageGenerationException e) {
+            throw new VideoRecorderException("Could not record " + destination, e);
+        } finally {
+            imageInput.close();
+        }
+    }
+}